@@ -1,56 +1,397 @@
 // Hand-written Compiler compiler
 
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
 import java.util.Scanner;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+import java.util.zip.ZipFile;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
 
 //======================================================
 class Compiler {
     public static void main(String[] args) throws IOException {
         System.out.println("Compiler compiler written by Sabhaya Saumil");
 
-        if (args.length != 1) {
-            System.out.println("Wrong number cmd line args");
+        R4DOptions opts = new R4DOptions();
+        if (!opts.parse(args))
             System.exit(1);
+
+        // -fuzz and -bench run the testers instead
+        if (opts.fuzz > 0)
+            System.exit(R4DFuzz.run(opts) ? 0 : 1);
+        if (opts.bench != null)
+            System.exit(R4DBench.run(opts) ? 0 : 1);
+
+        // several units are compiled separately and linked
+        if (opts.files.size() > 1) {
+            if (opts.profileGen || opts.profileUse || opts.sourceMap
+                    || opts.run || opts.peval > 0 || opts.autotune
+                    || opts.stream || opts.jvm || opts.cache != null) {
+                System.out.println("Option needs a single file");
+                System.exit(1);
+            }
+            System.exit(R4DLink.build(opts) ? 0 : 1);
         }
 
-        // set to true to debug token manager
-        boolean debug = false;
+        if (opts.files.size() != 1) {
+            System.out.println("Wrong number cmd line args");
+            System.exit(1);
+        }
 
-        // build the input and output file names
-        String inFileName = args[0] + ".s";
-        String outFileName = args[0] + ".a";
+        // streaming leaves no code behind to reorder or rerun
+        if (opts.stream && (opts.optLevel > 1 || opts.profileGen
+                || opts.profileUse || opts.sourceMap || opts.peval > 0
+                || opts.autotune || opts.parallelLex || opts.jvm
+                || opts.cache != null)) {
+            System.out.println("-stream needs -O0 or -O1, and no option"
+                    + " that looks at the code after it is generated");
+            System.exit(1);
+        }
 
-        // construct file objects
-        Scanner inFile = new Scanner(new File(inFileName));
-        PrintWriter outFile = new PrintWriter(outFileName);
+        // -run executes an existing .a file under the profiler
+        if (opts.run) {
+            R4DReport.run(opts.files.get(0));
+            return;
+        }
 
-        // identify compiler/author in the output file
-        outFile.println("!register");
-        outFile.println("; from Compiler compiler written by Sabhaya Saumil");
+        // build the input, output and profile file names
+        String inFileName = opts.files.get(0) + ".s";
+        String outFileName = opts.files.get(0) + ".a";
+        String profFileName = opts.files.get(0) + ".prof";
+
+        // a previous -profile-gen run steers layout decisions
+        if (opts.profileUse)
+            opts.profile = R4DProfile.load(profFileName);
+
+        // -cache: a source compiled before with the same options
+        // is not compiled again
+        R4DCache cache = null;
+        String key = null;
+        String src = null;
+        if (opts.cache != null && R4DCache.applies(opts)) {
+            cache = new R4DCache(new File(opts.cache), R4DCache.MEMORY,
+                    opts.cacheLimit);
+            src = new String(Files.readAllBytes(new File(inFileName).toPath()));
+            key = R4DCache.key(src, opts);
+            R4DCache.Entry hit = cache.get(key);
+            if (hit != null) {
+                Files.write(new File(outFileName).toPath(), hit.bytes);
+                new File(opts.files.get(0) + ".map").delete();
+                if (opts.jvm)
+                    runJvm(hit.code());
+                return;
+            }
+        }
 
-        // construct objects that make up compiler
-        R4DSymTab st = new R4DSymTab();
-        R4DTokenMgr tm = new R4DTokenMgr(inFile, outFile, debug);
-        R4DCodeGen cg = new R4DCodeGen(outFile, st);
-        R4DParser parser = new R4DParser(st, tm, cg);
+        // construct file objects
+        R4DFileEvent open = new R4DFileEvent();
+        open.begin();
+        Scanner inFile = src != null ? new Scanner(src)
+                : new Scanner(new File(inFileName));
+        open.path = inFileName;
+        open.operation = "open";
+        open.commit();
+        R4DEmitter outFile = new R4DEmitter(outFileName);
+
+        // generated code is collected here and written at the end,
+        // or with -stream written as it goes
+        R4DCode code = new R4DCode();
+        if (opts.stream)
+            code.stream(outFile);
 
         // parse and translate
         try {
-            parser.parse();
+            compile(inFile, code, opts);
+            if (opts.autotune)
+                code = R4DTune.best(opts.files.get(0), opts, code);
         } catch (RuntimeException e) {
             System.err.println(e.getMessage());
-            outFile.println(e.getMessage());
+            code.write(outFile);
+            outFile.line(String.valueOf(e.getMessage()));
             outFile.close();
             System.exit(1);
         }
 
+        // run what does not depend on input at compile time
+        if (opts.peval > 0)
+            code = R4DPartialEval.residual(code, opts.peval);
+
+        code.write(outFile);
         outFile.close();
+        if (cache != null)
+            cache.put(key, R4DCache.entry(code));
+        if (opts.sourceMap)
+            R4DSourceMap.write(opts.files.get(0) + ".map", code);
+        else    // a stale map would misattribute the new code
+            new File(opts.files.get(0) + ".map").delete();
+
+        // run the program once on the simulator to record a profile
+        if (opts.profileGen) {
+            R4DSim sim = new R4DSim(code, new Scanner(System.in));
+            try {
+                sim.run(R4DSim.MAX_STEPS);
+            } catch (RuntimeException e) {
+                System.out.print(sim.getOutput());
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+            System.out.print(sim.getOutput());
+            R4DProfile.write(profFileName, code, sim);
+        }
+
+        // or run it natively, as a JVM class
+        if (opts.jvm)
+            runJvm(code);
+    }
+
+    //-----------------------------------------
+    // Run code as a JVM class.  An error at run time is
+    // reported as a compile error is.
+    //
+    private static void runJvm(R4DCode code) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+        try {
+            R4DJvm.run(code, new Scanner(System.in), out);
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    //-----------------------------------------
+    // Translate the program read from inFile into code.  On a
+    // syntax error, code holds everything generated before it
+    // and a RuntimeException describes the error.
+    //
+    // -Os leaves loops rolled and flushes output at every
+    // store, which is smaller as a rule.  The program is also
+    // compiled with -O2's unrolling and output queue and -Os's
+    // own passes, and that code is kept when it is smaller, as
+    // for a loop the compiler runs to the end.
+    //
+    public static void compile(Scanner inFile, R4DCode code,
+                               R4DOptions opts) {
+        if (!opts.optSize || !opts.rolled) {
+            translate(inFile, code, opts);
+            return;
+        }
+        StringBuilder src = new StringBuilder();
+        while (inFile.hasNextLine())
+            src.append(inFile.nextLine()).append('\n');
+        translate(new Scanner(src.toString()), code, opts);
+
+        R4DOptions o = opts.copy();
+        o.rolled = false;
+        R4DCode unrolled = new R4DCode();
+        try {
+            translate(new Scanner(src.toString()), unrolled, o);
+        } catch (RuntimeException e) {
+            return;
+        }
+        if (R4DSim.size(unrolled) < R4DSim.size(code)) {
+            ArrayList<R4DInstr> records = new ArrayList<R4DInstr>();
+            for (int i = 0; i < unrolled.size(); i++)
+                records.add(unrolled.get(i));
+            code.replace(records, unrolled.getBoundaries());
+        }
+    }
+
+    //-----------------------------------------
+    private static void translate(Scanner inFile, R4DCode code,
+                                  R4DOptions opts) {
+        // set to true to debug token manager
+        boolean debug = false;
+
+        // identify compiler/author in the output file
+        code.text("!register");
+        code.text("; from Compiler compiler written by Sabhaya Saumil");
+
+        // copies of unrolled loops echo their lines again
+        if (R4DParser.unrolls(opts))
+            code.keepEchoes();
+
+        // construct objects that make up compiler
+        R4DSymTab st;
+        try {
+            st = opts.stream ? new R4DSymTab(new R4DSpill()) : new R4DSymTab();
+        } catch (IOException e) {
+            throw new RuntimeException("Spill file: " + e.getMessage());
+        }
+        R4DTokenSource tm;
+        if (opts.parallelLex)
+            tm = new R4DParallelLexer(inFile, code, debug, !opts.sourceMap);
+        else
+            tm = new R4DTokenMgr(inFile, code, debug, !opts.sourceMap);
+        R4DCodeGen cg = new R4DCodeGen(code, st, opts);
+        R4DParser parser = new R4DParser(st, tm, cg, opts);
+
+        parser.parse();
+        st.close();
+        if (opts.optSize)
+            R4DOutline.run(code, opts.profile);
     }
 }                                           // end of Compiler
 
+//======================================================
+class R4DOptions implements Cloneable {
+    // every optimization level, lowest first; -Os trades
+    // speed for size, so summaries stop at FASTEST
+    static final String[] LEVELS = {"-O0", "-O1", "-O2", "-Os"};
+    static final int FASTEST = 2;
+
+    int optLevel = 1;            // -O0 turns off constant folding
+    boolean optSize;             // -Os: -O2, then outline repeated code
+    boolean rolled = true;       // -Os: no unrolling or held output
+    boolean profileGen;          // record block counts in <file>.prof
+    boolean profileUse;          // lay out code from <file>.prof
+    R4DProfile profile;          // loaded profile, null if none
+    int fuzz;                    // -fuzz: programs to generate
+    long seed = 1;               // -seed: first generator seed
+    int fuzzSize = 40;           // -size: statements per program
+    boolean run;                 // -run: profile <file>.a
+    boolean sourceMap;           // -map: <file>.map instead of echo
+    boolean parallelLex;         // -parallel-lex: lex chunks concurrently
+    String bench;                // -bench: benchmark directory
+    boolean benchUpdate;         // -update: rewrite the baseline
+    int threshold = 2;           // -threshold: allowed regression %
+    String output;               // -o: linked program, else first unit
+    long peval;                  // -peval: step budget, 0 for off
+    boolean stackTemps;          // -stacktemps: spill temps to the stack
+    int negate = -1;             // -negate/-no-negate; -1: -O2 only
+    boolean autotune;            // -autotune: keep the cheapest variant
+    boolean unit;                // compiling a unit that will be linked
+    boolean stream;              // -stream: write code as it is made
+    boolean jvm;                 // -jvm: run as a JVM class
+    String cache;                // -cache: directory of compile results
+    long cacheLimit = R4DCache.DISK;  // -cache-limit: its size in bytes
+    ArrayList<String> files = new ArrayList<String>();
+
+    //-----------------------------------------
+    // Returns false after reporting a bad option.
+    //
+    public boolean parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            try {
+                if (arg.matches("-O[012]")) {
+                    optLevel = arg.charAt(2) - '0';
+                    optSize = false;
+                } else if (arg.equals("-Os")) {
+                    optLevel = 2;
+                    optSize = true;
+                } else if (arg.equals("-profile-gen"))
+                    profileGen = true;
+                else if (arg.equals("-profile-use"))
+                    profileUse = true;
+                else if (arg.equals("-fuzz"))
+                    fuzz = Integer.parseInt(args[++i]);
+                else if (arg.equals("-seed"))
+                    seed = Long.parseLong(args[++i]);
+                else if (arg.equals("-size"))
+                    fuzzSize = Integer.parseInt(args[++i]);
+                else if (arg.equals("-parallel-lex"))
+                    parallelLex = true;
+                else if (arg.equals("-map"))
+                    sourceMap = true;
+                else if (arg.equals("-run"))
+                    run = true;
+                else if (arg.equals("-bench"))
+                    bench = args[++i];
+                else if (arg.equals("-update"))
+                    benchUpdate = true;
+                else if (arg.equals("-negate"))
+                    negate = 1;
+                else if (arg.equals("-no-negate"))
+                    negate = 0;
+                else if (arg.equals("-autotune"))
+                    autotune = true;
+                else if (arg.equals("-stream"))
+                    stream = true;
+                else if (arg.equals("-jvm"))
+                    jvm = true;
+                else if (arg.equals("-cache"))
+                    cache = args[++i];
+                else if (arg.equals("-cache-limit"))
+                    cacheLimit = Long.parseLong(args[++i]) << 20;
+                else if (arg.equals("-stacktemps"))
+                    stackTemps = true;
+                else if (arg.equals("-peval"))
+                    peval = Long.parseLong(args[++i]);
+                else if (arg.equals("-o"))
+                    output = args[++i];
+                else if (arg.equals("-threshold"))
+                    threshold = Integer.parseInt(args[++i]);
+                else if (arg.startsWith("-")) {
+                    System.out.println("Unknown option " + arg);
+                    return false;
+                } else
+                    files.add(arg);
+            } catch (RuntimeException e) {
+                System.out.println("Bad value for option " + arg);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //-----------------------------------------
+    public R4DOptions copy() {
+        try {
+            return (R4DOptions) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}                                    // end of R4DOptions
+
 //======================================================
 interface R4DConstants {
     // integers that identify token kinds
@@ -76,6 +417,14 @@ interface R4DConstants {
     int WHILE = 19;
     int IF = 20;
     int ELSE = 21;
+    int LT = 22;
+    int LE = 23;
+    int GT = 24;
+    int GE = 25;
+    int EQ = 26;
+    int NE = 27;
+    int AND = 28;
+    int OR = 29;
 
     // tokenImage provides string for each token kind
     String[] tokenImage =
@@ -101,124 +450,511 @@ interface R4DConstants {
                     "\"do\"",
                     "\"while\"",
                     "\"if\"",
-                    "\"else\""
+                    "\"else\"",
+                    "\"<\"",
+                    "\"<=\"",
+                    "\">\"",
+                    "\">=\"",
+                    "\"==\"",
+                    "\"!=\"",
+                    "\"&&\"",
+                    "\"||\""
             };
 }                                  // end of R4DConstants
 
+//======================================================
+// A symbol table entry: one data word.  Its kind is fixed
+// when it is entered, along with the value of a constant and
+// the number of a temp, so nothing is worked out from the
+// name later.
+//
+class R4DSymbol {
+    static final int VARIABLE = 0;  // source variable, or a literal
+                                    // too large for an int
+    static final int CONSTANT = 1;  // @n or @_n
+    static final int TEMP = 2;      // @tn
+    static final int STRING = 3;    // @Ln, a string dw
+
+    int kind;
+    String name;
+    String dwValue;
+    int value;                      // CONSTANT value, TEMP number
+    boolean needsdw;
+    int seq;                        // order entered
+}
+
 //======================================================
 class R4DSymTab {
-    private ArrayList<String> symbol;
-    private ArrayList<String> dwValue;
-    private ArrayList<Boolean> needsdw;
+    static final int CACHED = 4096;     // -stream: symbols kept on the heap
+
+    private ArrayList<R4DSymbol> symbols;
+    private HashMap<String, Integer> index;     // by name
+    private HashMap<String, Integer> strings;   // STRING by dw value
+    private int entered;
+
+    // -stream: every symbol is in the spill file, found there
+    // by name or by string value; the ones used last are also
+    // kept here, by number and by key
+    private R4DSpill spill;
+    private LinkedHashMap<Integer, R4DSymbol> cache;
+    private LinkedHashMap<String, Integer> recent;
+    private HashSet<Integer> changed = new HashSet<Integer>();  // cached, needsdw set
 
     //-----------------------------------------
     public R4DSymTab() {
-        symbol = new ArrayList<String>();
-        dwValue = new ArrayList<String>();
-        needsdw = new ArrayList<Boolean>();
+        symbols = new ArrayList<R4DSymbol>();
+        index = new HashMap<String, Integer>();
+        strings = new HashMap<String, Integer>();
+    }
+
+    //-----------------------------------------
+    // A table that lives in spill, with no more than CACHED
+    // symbols on the heap at a time.
+    //
+    public R4DSymTab(R4DSpill spill) {
+        this();
+        this.spill = spill;
+        cache = new LinkedHashMap<Integer, R4DSymbol>(16, 0.75f, true);
+        recent = new LinkedHashMap<String, Integer>(16, 0.75f, true);
     }
 
     //-----------------------------------------
     public int enter(String s, String v, boolean b) {
-        int index = symbol.indexOf(s);
-        if (index >= 0)
-            return index;
+        return enter(s, R4DSymbol.VARIABLE, v, b);
+    }
+
+    //-----------------------------------------
+    // Enter s unless it is there already.  A constant's value
+    // is parsed from v here, once.
+    //
+    public int enter(String s, int kind, String v, boolean b) {
+        int i = find(s);
+        if (i >= 0)
+            return i;
+
+        R4DSymbol sym = new R4DSymbol();
+        sym.kind = kind;
+        sym.name = s;
+        sym.dwValue = v;
+        sym.needsdw = b;
+        sym.seq = entered++;
+        if (kind == R4DSymbol.CONSTANT)
+            try {
+                sym.value = Integer.parseInt(v);
+            } catch (NumberFormatException e) {
+                sym.kind = R4DSymbol.VARIABLE;
+            }
+        else if (kind == R4DSymbol.TEMP)
+            sym.value = Integer.parseInt(s.substring(2));
+        boolean first = kind == R4DSymbol.STRING && getString(v) < 0;
+
+        if (spill != null) {
+            spill.add(sym, first);
+            keep(sym);
+            return sym.seq;
+        }
+        if (first)
+            strings.put(v, symbols.size());
+        index.put(s, symbols.size());
+        symbols.add(sym);
+        return symbols.size() - 1;
+    }
+
+    //-----------------------------------------
+    // Symbol for an integer constant.
+    //
+    public int enterConstant(int value) {
+        if (value >= 0)
+            return enter("@" + value, R4DSymbol.CONSTANT, "" + value, false);
+        return enter("@_" + (value * (-1)), R4DSymbol.CONSTANT, "" + value, false);
+    }
+
+    //-----------------------------------------
+    // Number of the symbol named key, or -1.
+    //
+    private int find(String key) {
+        Integer i = spill != null ? recent.get(key) : index.get(key);
+        if (i == null && spill != null) {
+            i = spill.find(key);
+            if (i < 0)
+                return -1;
+            remember(key, i);
+        }
+        return i == null ? -1 : i;
+    }
+
+    //-----------------------------------------
+    private R4DSymbol sym(int index) {
+        if (spill == null)
+            return symbols.get(index);
+        R4DSymbol sym = cache.get(index);
+        if (sym == null)
+            keep(sym = spill.get(index));
+        return sym;
+    }
+
+    //-----------------------------------------
+    // Cache sym; the symbol used longest ago goes back to
+    // the spill file.
+    //
+    private void keep(R4DSymbol sym) {
+        cache.put(sym.seq, sym);
+        remember(sym.name, sym.seq);
+        if (cache.size() > CACHED) {
+            Iterator<R4DSymbol> oldest = cache.values().iterator();
+            R4DSymbol old = oldest.next();
+            if (changed.remove(old.seq))
+                spill.update(old);
+            oldest.remove();
+        }
+    }
 
-        index = symbol.size();
-        symbol.add(s);
-        dwValue.add(v);
-        needsdw.add(b);
-        return index;
+    //-----------------------------------------
+    private void remember(String key, int index) {
+        recent.put(key, index);
+        if (recent.size() > CACHED) {
+            Iterator<String> oldest = recent.keySet().iterator();
+            oldest.next();
+            oldest.remove();
+        }
     }
 
     //-----------------------------------------
     public String getSymbol(int index) {
-        return symbol.get(index);
+        return sym(index).name;
     }
 
     //-----------------------------------------
-    public int getLabelindex(String s) {
-        int index = dwValue.indexOf(s);
-        return index;
+    // The string label whose dw holds image, or -1.
+    //
+    public int getString(String image) {
+        if (spill != null)
+            return find(image);
+        Integer i = strings.get(image);
+        return i == null ? -1 : i;
     }
 
     //-----------------------------------------
-    public Boolean isTemp(int index) {
-        String ss = symbol.get(index);
-        if (ss.charAt(0) == '@' && ss.charAt(1) == 't') {
-            return true;
-        } else
-            return false;
+    public boolean isTemp(int index) {
+        return sym(index).kind == R4DSymbol.TEMP;
     }
 
     //-----------------------------------------
     public int getSize() {
-        return symbol.size();
+        return entered;
     }
 
     //------------------------------------------
     public String getdwValue(int index) {
-        return dwValue.get(index);
+        return sym(index).dwValue;
+    }
+
+    //------------------------------------------
+    // Value of a constant, number of a temp.
+    //
+    public int getValue(int index) {
+        return sym(index).value;
     }
 
     //------------------------------------------
     public boolean getNeedsdw(int index) {
-        return needsdw.get(index);
+        return sym(index).needsdw;
     }
 
     //-----------------------------------------
     public void setNeedsdw(int index) {
-        needsdw.set(index, true);
+        R4DSymbol sym = sym(index);
+        if (spill != null && !sym.needsdw)
+            changed.add(index);
+        sym.needsdw = true;
     }
 
     //-----------------------------------------
     public boolean isLDCConstant(int index) {
-        String s = getSymbol(index);
-        if (s.charAt(0) == '@') {
-            int i = 1;
-            if (s.charAt(1) == '_')
-                i++;
+        return sym(index).kind == R4DSymbol.CONSTANT;
+    }
 
-            s = s.substring(i);
-            try {
-                Integer.parseInt(s);
+    //-----------------------------------------
+    // Remove the spill file, if any, once the dws are out.
+    //
+    public void close() {
+        if (spill != null)
+            spill.close();
+    }
+}                                     // end of R4DSymTab
 
-            } catch (NumberFormatException e) {
-                return false;
+//======================================================
+// Symbol table kept off the heap while streaming.  Each
+// symbol is a record appended to a temporary file.  Where
+// each record starts, by symbol number, and a hash table
+// from name to symbol number are memory-mapped files, so
+// none of them is on the heap however many symbols the
+// program has.  A string is also found by its dw value,
+// so equal literals share a dw as they do in memory.
+//
+//   record: kind, needsdw, value, name length, name,
+//           dw length, dw value  (text in UTF-8)
+//   slot:   symbol number + 1 (0 if free), hash of the key
+//
+// The table is probed linearly and doubles once half full.
+//
+class R4DSpill {
+    private static final int HEADER = 10;         // up to the name
+    private static final int SLOTS = 1 << 12;     // at first
+
+    private ArrayList<File> files = new ArrayList<File>();
+    private FileChannel data;
+    private ByteBuffer tail = ByteBuffer.allocate(1 << 16);  // not yet written
+    private long written;                 // bytes in data
+    private FileChannel starts;
+    private MappedByteBuffer start;       // of each record
+    private MappedByteBuffer slots;
+    private int keys;
+    private int count;
+
+    //-----------------------------------------
+    public R4DSpill() throws IOException {
+        data = open();
+        starts = open();
+        start = starts.map(FileChannel.MapMode.READ_WRITE, 0, 8L * SLOTS);
+        slots = table(SLOTS);
+    }
+
+    //-----------------------------------------
+    // Append sym, number count, found by its name and, if
+    // byValue, by its dw value.
+    //
+    public void add(R4DSymbol sym, boolean byValue) {
+        try {
+            byte[] name = sym.name.getBytes(StandardCharsets.UTF_8);
+            byte[] value = sym.dwValue.getBytes(StandardCharsets.UTF_8);
+            int length = HEADER + name.length + 4 + value.length;
+            if (tail.remaining() < length)
+                flush();
+            long at = written + tail.position();
+            ByteBuffer b = length > tail.capacity() ? ByteBuffer.allocate(length) : tail;
+            b.put((byte) sym.kind).put((byte) (sym.needsdw ? 1 : 0)).putInt(sym.value)
+                    .putInt(name.length).put(name).putInt(value.length).put(value);
+            if (b != tail) {
+                b.flip();
+                write(b, at);
+                written += length;
             }
 
-            return true;
-        } else {
-            return false;
+            if (8L * count >= start.capacity())
+                start = starts.map(FileChannel.MapMode.READ_WRITE, 0,
+                        2L * start.capacity());
+            start.putLong(8 * count, at);
+            insert(sym.name, count);
+            if (byValue)
+                insert(sym.dwValue, count);
+            count++;
+        } catch (IOException e) {
+            throw new RuntimeException("Spill file: " + e.getMessage());
+        }
+    }
+
+    //-----------------------------------------
+    // Read back symbol number index.
+    //
+    public R4DSymbol get(int index) {
+        try {
+            long at = start.getLong(8 * index);
+            long end = index + 1 < count ? start.getLong(8 * (index + 1))
+                    : written + tail.position();
+            ByteBuffer b = read(at, (int) (end - at));
+            R4DSymbol sym = new R4DSymbol();
+            sym.kind = b.get();
+            sym.needsdw = b.get() != 0;
+            sym.value = b.getInt();
+            sym.name = text(b, b.getInt());
+            sym.dwValue = text(b, b.getInt());
+            sym.seq = index;
+            return sym;
+        } catch (IOException e) {
+            throw new RuntimeException("Spill file: " + e.getMessage());
         }
+    }
 
+    //-----------------------------------------
+    // Write back what can change once entered: needsdw.
+    //
+    public void update(R4DSymbol sym) {
+        try {
+            long at = start.getLong(8 * sym.seq);
+            if (at >= written)
+                flush();
+            write(ByteBuffer.wrap(new byte[]{(byte) (sym.needsdw ? 1 : 0)}), at + 1);
+        } catch (IOException e) {
+            throw new RuntimeException("Spill file: " + e.getMessage());
+        }
     }
 
-}                                     // end of R4DSymTab
+    //-----------------------------------------
+    // Number of the symbol found by key, or -1.  A key that
+    // starts with a quote is a string's dw value.
+    //
+    public int find(String key) {
+        int hash = hash(key);
+        int mask = slots.capacity() / 8 - 1;
+        for (int s = hash & mask; ; s = (s + 1) & mask) {
+            int index = slots.getInt(8 * s) - 1;
+            if (index < 0)
+                return -1;
+            if (slots.getInt(8 * s + 4) != hash)
+                continue;
+            R4DSymbol sym = get(index);
+            if (key.equals(key.startsWith("\"") ? sym.dwValue : sym.name))
+                return index;
+        }
+    }
+
+    //-----------------------------------------
+    public void close() {
+        try {
+            data.close();
+            starts.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Spill file: " + e.getMessage());
+        }
+        for (File f : files)
+            f.delete();
+    }
+
+    //-----------------------------------------
+    private void insert(String key, int index) throws IOException {
+        if (2 * (keys + 1) > slots.capacity() / 8) {
+            MappedByteBuffer old = slots;
+            slots = table(old.capacity() / 4);
+            for (int s = 0; s < old.capacity() / 8; s++)
+                if (old.getInt(8 * s) != 0)
+                    put(old.getInt(8 * s), old.getInt(8 * s + 4));
+        }
+        put(index + 1, hash(key));
+        keys++;
+    }
+
+    //-----------------------------------------
+    private void put(int slot, int hash) {
+        int mask = slots.capacity() / 8 - 1;
+        int s = hash & mask;
+        while (slots.getInt(8 * s) != 0)
+            s = (s + 1) & mask;
+        slots.putInt(8 * s, slot);
+        slots.putInt(8 * s + 4, hash);
+    }
+
+    //-----------------------------------------
+    private static int hash(String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    //-----------------------------------------
+    // An empty hash table of n slots, in a file of its own.
+    //
+    private MappedByteBuffer table(int n) throws IOException {
+        FileChannel channel = open();
+        MappedByteBuffer t = channel.map(FileChannel.MapMode.READ_WRITE, 0, 8L * n);
+        channel.close();        // the mapping stays valid
+        return t;
+    }
+
+    //-----------------------------------------
+    private FileChannel open() throws IOException {
+        File f = File.createTempFile("r4d", ".spill");
+        f.deleteOnExit();
+        files.add(f);
+        return new RandomAccessFile(f, "rw").getChannel();
+    }
+
+    //-----------------------------------------
+    private void flush() throws IOException {
+        tail.flip();
+        int length = tail.remaining();
+        write(tail, written);
+        written += length;
+        tail.clear();
+    }
+
+    //-----------------------------------------
+    private void write(ByteBuffer b, long at) throws IOException {
+        while (b.hasRemaining())
+            at += data.write(b, at);
+    }
+
+    //-----------------------------------------
+    private ByteBuffer read(long at, int length) throws IOException {
+        if (at + length > written)
+            flush();
+        ByteBuffer b = ByteBuffer.allocate(length);
+        while (b.hasRemaining())
+            if (data.read(b, at + b.position()) < 0)
+                throw new IOException("Spill file is short");
+        b.flip();
+        return b;
+    }
+
+    //-----------------------------------------
+    private static String text(ByteBuffer b, int length) {
+        String s = new String(b.array(), b.position(), length, StandardCharsets.UTF_8);
+        b.position(b.position() + length);
+        return s;
+    }
+}                                       // end of R4DSpill
 
 //======================================================
-class R4DTokenMgr implements R4DConstants {
+interface R4DTokenSource {
+    Token getNextToken();
+}                               // end of R4DTokenSource
+
+//======================================================
+class R4DTokenMgr implements R4DConstants, R4DTokenSource {
+    // an ASCII line is scanned 8 bytes at a time, read as
+    // one long; a byte's high bit marks it in a long of flags
+    private static final VarHandle LONGS = MethodHandles
+            .byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long ONES = 0x0101010101010101L;
+    private static final long LOW = 0x7f7f7f7f7f7f7f7fL;
+    private static final long HIGH = 0x8080808080808080L;
+
     private Scanner inFile;
-    private PrintWriter outFile;
+    private List<String> lines;  // read from here if inFile is null
+    private int nextLine;
+    private R4DCode code;
     private boolean debug;
+    private boolean echo;        // copy source lines into the output
     private char currentChar;
     private int currentColumnNumber;
     private int currentLineNumber;
     private String inputLine;    // holds 1 line of input
+    private byte[] bytes;        // inputLine if all ASCII, else null
     private Token token;         // holds 1 token
     private StringBuffer buffer; // token image built here
 
     //-----------------------------------------
     public R4DTokenMgr(Scanner inFile,
-                       PrintWriter outFile, boolean debug) {
+                       R4DCode code, boolean debug, boolean echo) {
         this.inFile = inFile;
-        this.outFile = outFile;
+        this.code = code;
         this.debug = debug;
+        this.echo = echo;
         currentChar = '\n';        //  '\n' triggers read
         currentLineNumber = 0;
         buffer = new StringBuffer();
     }
 
+    //-----------------------------------------
+    // Token manager over lines already in memory, the first
+    // of which is line firstLine of the source file.
+    //
+    public R4DTokenMgr(List<String> lines, int firstLine,
+                       R4DCode code, boolean debug, boolean echo) {
+        this(null, code, debug, echo);
+        this.lines = lines;
+        currentLineNumber = firstLine - 1;
+    }
+
     //-----------------------------------------
     public Token getNextToken() {
         // skip whitespace
@@ -226,7 +962,7 @@ class R4DTokenMgr implements R4DConstants {
         token.next = null;
 
         while (Character.isWhitespace(currentChar))
-            getNextChar();
+            skipBlanks();
 
         if (currentChar == '/')                    //For Comments
         {
@@ -235,7 +971,7 @@ class R4DTokenMgr implements R4DConstants {
                     currentChar = '\n';
                     getNextChar();
                     while (Character.isWhitespace(currentChar))
-                        getNextChar();
+                        skipBlanks();
                     if (currentChar != '/') {
                         break;
                     } else if (inputLine.charAt(currentColumnNumber) != '/') {
@@ -257,29 +993,11 @@ class R4DTokenMgr implements R4DConstants {
             token.kind = EOF;
         } else  // check for unsigned int
             if (Character.isDigit(currentChar)) {
-                buffer.setLength(0);  // clear buffer
-                do  // build token image in buffer
-                {
-                    buffer.append(currentChar);
-                    token.endLine = currentLineNumber;
-                    token.endColumn = currentColumnNumber;
-                    getNextChar();
-                } while (Character.isDigit(currentChar));
-                // save buffer as String in token.image
-                token.image = buffer.toString();
+                token.image = word(false);
                 token.kind = UNSIGNED;
             } else  // check for identifier
                 if (Character.isLetter(currentChar)) {
-                    buffer.setLength(0);  // clear buffer
-                    do  // build token image in buffer
-                    {
-                        buffer.append(currentChar);
-                        token.endLine = currentLineNumber;
-                        token.endColumn = currentColumnNumber;
-                        getNextChar();
-                    } while (Character.isLetterOrDigit(currentChar));
-                    // save buffer as String in token.image
-                    token.image = buffer.toString();
+                    token.image = word(true);
 
                     // check if keyword
                     if (token.image.equals("println"))
@@ -304,7 +1022,9 @@ class R4DTokenMgr implements R4DConstants {
                         buffer.setLength(0);  // clear buffer
                         buffer.append("\"");
                         getNextChar();
-                        while (currentChar != '\"')  // build token image in buffer
+                        // build token image in buffer; an unterminated
+                        // string would otherwise spin at EOF
+                        while (currentChar != '\"' && currentChar != EOF)
                         {
 
                             if (currentChar == '\\') {
@@ -325,7 +1045,7 @@ class R4DTokenMgr implements R4DConstants {
                         // save buffer as String in token.image
                         token.image = buffer.toString();
                         //System.out.println(token.image);
-                        token.kind = STRING;
+                        token.kind = currentChar == EOF ? ERROR : STRING;
                         getNextChar();
                         // check if keyword
 
@@ -362,6 +1082,12 @@ class R4DTokenMgr implements R4DConstants {
                             case '}':
                                 token.kind = CLOSE;
                                 break;
+                            case '<':
+                                token.kind = LT;
+                                break;
+                            case '>':
+                                token.kind = GT;
+                                break;
                             default:
                                 token.kind = ERROR;
                                 break;
@@ -375,19 +1101,140 @@ class R4DTokenMgr implements R4DConstants {
                         token.endColumn = currentColumnNumber;
 
                         getNextChar();  // read beyond end of token
+
+                        // ==, !=, <=, >=, && and || take two
+                        int kind = pair(token.image.charAt(0), currentChar);
+                        if (kind != ERROR) {
+                            token.kind = kind;
+                            token.image += currentChar;
+                            token.endColumn = currentColumnNumber;
+                            getNextChar();
+                        }
                     }
 
         // token trace appears as comments in output file
         if (debug)
-            outFile.printf(
-                    "; kd=%3d bL=%3d bC=%3d eL=%3d eC=%3d im=%s%n",
+            code.text(String.format(
+                    "; kd=%3d bL=%3d bC=%3d eL=%3d eC=%3d im=%s",
                     token.kind, token.beginLine, token.beginColumn,
-                    token.endLine, token.endColumn, token.image);
+                    token.endLine, token.endColumn, token.image));
 
 
         return token;     // return token to parser
     }
 
+    //-----------------------------------------
+    // Image of the number, or with letters the identifier,
+    // that starts at currentChar.
+    //
+    private String word(boolean letters) {
+        token.endLine = currentLineNumber;
+        if (bytes != null) {
+            int start = currentColumnNumber - 1;
+            int end = wordEnd(currentColumnNumber, letters);
+            token.endColumn = end;
+            currentChar = (char) bytes[end];
+            currentColumnNumber = end + 1;
+            return inputLine.substring(start, end);
+        }
+
+        buffer.setLength(0);  // clear buffer
+        do  // build token image in buffer
+        {
+            buffer.append(currentChar);
+            token.endColumn = currentColumnNumber;
+            getNextChar();
+        } while (letters ? Character.isLetterOrDigit(currentChar)
+                : Character.isDigit(currentChar));
+        return buffer.toString();
+    }
+
+    //-----------------------------------------
+    // Skip currentChar, which is whitespace, and on an ASCII
+    // line the spaces and tabs after it.
+    //
+    private void skipBlanks() {
+        if (bytes == null || currentChar == '\n') {
+            getNextChar();
+            return;
+        }
+        int i = currentColumnNumber;
+        for (; i + 8 <= bytes.length; i += 8) {
+            long x = (long) LONGS.get(bytes, i);
+            long other = ~(zero(x ^ (' ' * ONES)) | zero(x ^ ('\t' * ONES))) & HIGH;
+            if (other != 0) {
+                i += Long.numberOfTrailingZeros(other) >>> 3;
+                break;
+            }
+        }
+        while (bytes[i] == ' ' || bytes[i] == '\t')   // '\n' ends the line
+            i++;
+        currentChar = (char) bytes[i];
+        currentColumnNumber = i + 1;
+    }
+
+    //-----------------------------------------
+    // Index of the first byte from i on that is not a digit,
+    // or with letters not a letter or digit.
+    //
+    private int wordEnd(int i, boolean letters) {
+        for (; i + 8 <= bytes.length; i += 8) {
+            long x = (long) LONGS.get(bytes, i);
+            long in = between(x, '0', '9');
+            if (letters)        // | 0x20 makes A-Z a-z and no other byte
+                in |= between(x | (0x20 * ONES), 'a', 'z');
+            long out = ~in & HIGH;
+            if (out != 0)
+                return i + (Long.numberOfTrailingZeros(out) >>> 3);
+        }
+        while (true) {
+            int b = bytes[i];
+            if (!(b >= '0' && b <= '9'
+                    || letters && (b | 0x20) >= 'a' && (b | 0x20) <= 'z'))
+                return i;
+            i++;
+        }
+    }
+
+    //-----------------------------------------
+    // High bit set in each byte of x that is 0.
+    //
+    private static long zero(long x) {
+        return ~(((x & LOW) + LOW) | x | LOW);
+    }
+
+    //-----------------------------------------
+    // High bit set in each byte of x from lo to hi; every
+    // byte of x is below 0x80, so no sum carries into the
+    // next byte.
+    //
+    private static long between(long x, char lo, char hi) {
+        return (x + (0x80 - lo) * ONES) & ~(x + (0x7f - hi) * ONES) & HIGH;
+    }
+
+    //-----------------------------------------
+    // Kind of the two-character operator first second, or
+    // ERROR if it is not one.
+    //
+    private static int pair(char first, char second) {
+        if (second == '=')
+            switch (first) {
+                case '=':
+                    return EQ;
+                case '!':
+                    return NE;
+                case '<':
+                    return LE;
+                case '>':
+                    return GE;
+            }
+        else if (second == first && first == '&')
+            return AND;
+        else if (second == first && first == '|')
+            return OR;
+        return ERROR;
+    }
+
     //-----------------------------------------
     private void getNextChar() {
         if (currentChar == EOF)
@@ -395,14 +1242,27 @@ class R4DTokenMgr implements R4DConstants {
 
         if (currentChar == '\n')        // need next line?
         {
-            if (inFile.hasNextLine())     // any lines left?
+            if (inFile != null ? inFile.hasNextLine()
+                    : nextLine < lines.size())     // any lines left?
             {
-                inputLine = inFile.nextLine();  // get next line
+                // get next line
+                R4DLineEvent event = new R4DLineEvent();
+                event.begin();
+                inputLine = inFile != null ? inFile.nextLine() : lines.get(nextLine++);
+                currentLineNumber++;
+                event.line = currentLineNumber;
+                event.length = inputLine.length();
+                event.commit();
                 // output source line as comment
-                outFile.println("; " + inputLine);
+                if (echo)
+                    code.source(currentLineNumber, inputLine);
                 inputLine = inputLine + "\n";   // mark line end
                 currentColumnNumber = 0;
-                currentLineNumber++;
+
+                // as many bytes as chars: every char is ASCII
+                bytes = inputLine.getBytes(StandardCharsets.UTF_8);
+                if (bytes.length != inputLine.length())
+                    bytes = null;
             } else  // at end of file
             {
                 currentChar = EOF;
@@ -419,19 +1279,201 @@ class R4DTokenMgr implements R4DConstants {
 }                                   // end of R4DTokenMgr
 
 //======================================================
-class R4DParser implements R4DConstants {
-    private R4DSymTab st;
-    private R4DTokenMgr tm;
-    private R4DCodeGen cg;
-    private Token currentToken;
+// Front end that splits the source into line ranges and
+// tokenizes them concurrently on the fork/join pool.  A
+// range may only start outside a string literal, so a
+// first parallel pass computes how each range maps the
+// string state at its top to the state at its bottom;
+// ranges that would start inside a string are merged with
+// the one before.  Tokens are then handed to the parser in
+// order, echoing source lines exactly when the serial
+// token manager would have.
+//
+class R4DParallelLexer implements R4DConstants, R4DTokenSource {
+    static final int CHUNK = 1024;   // minimum lines per range
+
+    // string state at a line boundary
+    private static final int OUT = 0;      // outside a string
+    private static final int IN = 1;       // inside a string
+    private static final int LITERAL = 2;  // after backslash-newline
+
+    private R4DCode code;
+    private boolean debug;
+    private boolean echo;
+    private ArrayList<String> lines = new ArrayList<String>();
+    private ArrayList<Token> tokens = new ArrayList<Token>();
+    private int next;              // next token to hand out
+    private int echoed;            // source lines echoed so far
+
+    //-----------------------------------------
+    public R4DParallelLexer(Scanner inFile, R4DCode code,
+                            boolean debug, boolean echo) {
+        this.code = code;
+        this.debug = debug;
+        this.echo = echo;
+        R4DFileEvent read = new R4DFileEvent();
+        read.begin();
+        while (inFile.hasNextLine())
+            lines.add(inFile.nextLine());
+        read.operation = "read";
+        read.lines = lines.size();
+        read.commit();
+
+        int n = Math.max(1, (lines.size() + CHUNK - 1) / CHUNK);
+        int[][] transfer = new int[n][];
+        ForkJoinPool.commonPool().invoke(new R4DSplit(0, n, i ->
+                transfer[i] = transfer(i * CHUNK,
+                        Math.min(lines.size(), (i + 1) * CHUNK))));
+
+        // ranges start at chunks entered outside a string
+        ArrayList<Integer> starts = new ArrayList<Integer>();
+        int state = OUT;
+        for (int i = 0; i < n; i++) {
+            if (state == OUT)
+                starts.add(i * CHUNK);
+            state = transfer[i][state];
+        }
+        starts.add(lines.size());
+
+        int ranges = starts.size() - 1;
+        List<List<Token>> out = new ArrayList<List<Token>>();
+        for (int i = 0; i < ranges; i++)
+            out.add(null);
+        ForkJoinPool.commonPool().invoke(new R4DSplit(0, ranges, i ->
+                out.set(i, tokenize(starts.get(i), starts.get(i + 1),
+                        i == ranges - 1))));
+        for (List<Token> t : out)
+            tokens.addAll(t);
+    }
+
+    //-----------------------------------------
+    public Token getNextToken() {
+        Token t = tokens.get(next);
+        if (next < tokens.size() - 1)
+            next++;
+
+        // the serial lexer has read up to the end of the
+        // token, or through the whole file at EOF
+        int last = t.kind == EOF ? lines.size() : t.endLine;
+        while (echoed < last) {
+            echoed++;
+            if (echo)
+                code.source(echoed, lines.get(echoed - 1));
+        }
+        if (debug)
+            code.text(String.format(
+                    "; kd=%3d bL=%3d bC=%3d eL=%3d eC=%3d im=%s",
+                    t.kind, t.beginLine, t.beginColumn,
+                    t.endLine, t.endColumn, t.image));
+        return t;
+    }
+
+    //-----------------------------------------
+    // Tokens for lines [from, to); the EOF token is kept
+    // only for the last range.
+    //
+    private ArrayList<Token> tokenize(int from, int to, boolean last) {
+        R4DTokenMgr tm = new R4DTokenMgr(lines.subList(from, to),
+                from + 1, code, false, false);
+        ArrayList<Token> list = new ArrayList<Token>();
+        Token t;
+        do {
+            t = tm.getNextToken();
+            list.add(t);
+        } while (t.kind != EOF);
+        if (!last)
+            list.remove(list.size() - 1);
+        return list;
+    }
+
+    //-----------------------------------------
+    // String state at line to for each state at line from,
+    // following the token manager's reading of literals.
+    //
+    private int[] transfer(int from, int to) {
+        int[] map = new int[3];
+        for (int s = OUT; s <= LITERAL; s++) {
+            int state = s;
+            for (int l = from; l < to; l++)
+                state = scan(lines.get(l) + "\n", state);
+            map[s] = state;
+        }
+        return map;
+    }
+
+    //-----------------------------------------
+    private static int scan(String line, int state) {
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (state == LITERAL)
+                state = IN;
+            else if (state == IN) {
+                if (c == '\\')
+                    // a backslash ending the line escapes the
+                    // first character of the next one
+                    if (line.charAt(++i) == '\n')
+                        return LITERAL;
+                    else
+                        continue;
+                if (c == '\"')
+                    state = OUT;
+            } else if (c == '\"')
+                state = IN;
+            else if (c == '/' && line.charAt(i + 1) == '/')
+                return OUT;          // comment runs to end of line
+        }
+        return state;
+    }
+}                                   // end of R4DParallelLexer
+
+//======================================================
+// Fork/join driver shared by the parallel passes: runs
+// body over [lo, hi), splitting down to single items.
+//
+class R4DSplit extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private int lo, hi;
+    private IntConsumer body;
+
+    //-----------------------------------------
+    R4DSplit(int lo, int hi, IntConsumer body) {
+        this.lo = lo;
+        this.hi = hi;
+        this.body = body;
+    }
+
+    //-----------------------------------------
+    protected void compute() {
+        if (hi - lo == 1)
+            body.accept(lo);
+        else if (hi - lo > 1) {
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new R4DSplit(lo, mid, body),
+                    new R4DSplit(mid, hi, body));
+        }
+    }
+}                                               // end of R4DSplit
+
+//======================================================
+class R4DParser implements R4DConstants {
+    static final int UNROLL_COPIES = 256;   // most copies of a loop body
+    static final int UNROLL_BUDGET = 256;   // most records they generate
+
+    private R4DSymTab st;
+    private R4DTokenSource tm;
+    private R4DCodeGen cg;
+    private R4DOptions opts;
+    private Token currentToken;
     private Token previousToken;
+    private int depth;               // nesting of compound statements
 
     //-----------------------------------------
-    public R4DParser(R4DSymTab st, R4DTokenMgr tm,
-                     R4DCodeGen cg) {
+    public R4DParser(R4DSymTab st, R4DTokenSource tm,
+                     R4DCodeGen cg, R4DOptions opts) {
         this.st = st;
         this.tm = tm;
         this.cg = cg;
+        this.opts = opts;
         // prime currentToken with first token
         currentToken = tm.getNextToken();
         previousToken = null;
@@ -519,37 +1561,51 @@ class R4DParser implements R4DConstants {
     }
 
     //-----------------------------------------
+    // The tail call to statementList is a loop so that long
+    // sources do not overflow the stack.
+    //
     private void statementList() {
-        switch (currentToken.kind) {
-            case ID:
-            case PRINTLN:
-            case PRINT:
-            case READINT:
-            case DO:
-            case WHILE:
-            case IF:
-                statement();
-                statementList();
-                break;
-            case SEMICOLON:
-                nullStatement();
-                statementList();
-                break;
-            case OPEN:
-                compoundStatement();
-                statementList();
-                break;
-            case CLOSE:
-            case EOF:
-                ;
-                break;
-            default:
-                throw genEx("Expecting statement or <EOF>");
+        while (true) {
+            if (depth == 0)
+                cg.boundary();    // where -peval may resume
+            switch (currentToken.kind) {
+                case ID:
+                case PRINTLN:
+                case PRINT:
+                case READINT:
+                case DO:
+                case WHILE:
+                case IF:
+                    statement();
+                    break;
+                case SEMICOLON:
+                    nullStatement();
+                    break;
+                case OPEN:
+                    compoundStatement();
+                    break;
+                case CLOSE:
+                case EOF:
+                    return;
+                default:
+                    throw genEx("Expecting statement or <EOF>");
+            }
         }
     }
 
     //-----------------------------------------
     private void statement() {
+        // code is attributed to the innermost enclosing statement
+        int line = cg.getLine();
+        int column = cg.getColumn();
+        cg.setLocation(currentToken.beginLine, currentToken.beginColumn);
+        cg.resume(currentToken.beginLine);      // a copy of a loop body
+        R4DStatementEvent event = new R4DStatementEvent();
+        event.begin();
+        event.statement = tokenImage[currentToken.kind];
+        event.line = currentToken.beginLine;
+        event.column = currentToken.beginColumn;
+
         switch (currentToken.kind) {
             case ID:
                 assignmentStatement();
@@ -579,6 +1635,9 @@ class R4DParser implements R4DConstants {
             default:
                 throw genEx("Expecting statement");
         }
+
+        event.commit();
+        cg.setLocation(line, column);
     }
 
     //-----------------------------------------
@@ -621,26 +1680,20 @@ class R4DParser implements R4DConstants {
 
     //-----------------------------------------
     private void printlnStatement() {
+        int temp = cg.getTempIndex();
         consume(PRINTLN);
         consume(LEFTPAREN);
         int expVal;
         Token t = currentToken;
-        if (t.kind == STRING) {
-
-            int index = st.getLabelindex(currentToken.image);
+        if (t.kind == STRING && opts.optLevel > 1) {
+            cg.printText(t.image.substring(1, t.image.length() - 1));
+            consume(STRING);
+        } else if (t.kind == STRING) {
 
-            if (index > 0) {
-                String Label = st.getSymbol(index);
-                if (Label.charAt(0) == '@' && Label.charAt(1) == 'L') {
-                    expVal = index;
-                } else {
-                    String label = cg.getLabel();
-                    expVal = st.enter(label, currentToken.image, true);
-                }
-            } else {
-                String label = cg.getLabel();
-                expVal = st.enter(label, currentToken.image, true);
-            }
+            expVal = st.getString(currentToken.image);
+            if (expVal < 0)
+                expVal = st.enter(cg.getLabel(), R4DSymbol.STRING,
+                        currentToken.image, true);
             consume(STRING);
             cg.print(expVal, 0);
         } else if (t.kind != RIGHTPAREN) {
@@ -650,29 +1703,24 @@ class R4DParser implements R4DConstants {
         cg.println();
         consume(RIGHTPAREN);
         consume(SEMICOLON);
+        cg.setTemp(temp);
     }
 
     //-----------------------------------------
     private void printStatement() {
+        int temp = cg.getTempIndex();
         consume(PRINT);
         consume(LEFTPAREN);
         int expVal;
         Token t = currentToken;
-        if (t.kind == STRING) {
-            int index = st.getLabelindex(currentToken.image);
-
-            if (index > 0) {
-                String Label = st.getSymbol(index);
-                if (Label.charAt(0) == '@' && Label.charAt(1) == 'L') {
-                    expVal = index;
-                } else {
-                    String label = cg.getLabel();
-                    expVal = st.enter(label, currentToken.image, true);
-                }
-            } else {
-                String label = cg.getLabel();
-                expVal = st.enter(label, currentToken.image, true);
-            }
+        if (t.kind == STRING && opts.optLevel > 1) {
+            cg.printText(t.image.substring(1, t.image.length() - 1));
+            consume(STRING);
+        } else if (t.kind == STRING) {
+            expVal = st.getString(currentToken.image);
+            if (expVal < 0)
+                expVal = st.enter(cg.getLabel(), R4DSymbol.STRING,
+                        currentToken.image, true);
             consume(STRING);
             cg.print(expVal, 0);
         } else if (t.kind != RIGHTPAREN) {
@@ -681,6 +1729,7 @@ class R4DParser implements R4DConstants {
         }
         consume(RIGHTPAREN);
         consume(SEMICOLON);
+        cg.setTemp(temp);
     }
 
     //-----------------------------------------
@@ -691,9 +1740,58 @@ class R4DParser implements R4DConstants {
     //-----------------------------------------
     private void doStatement() {
         Token T;
+        String site = siteKey(currentToken);
+
+        // at -O2 the body runs once, then as often as the
+        // counter is known not to be zero yet
+        if (unrolls(currentToken)) {
+            consume(DO);
+            Token body = currentToken;
+            int start = cg.codeSize();
+            int index;
+            for (int copies = 1; ; copies++) {
+                statement();
+                consume(WHILE);
+                consume(LEFTPAREN);
+                if (!simple()) {
+                    doRest(body);
+                    return;
+                }
+                T = currentToken;
+                consume(ID);
+                index = st.enter(T.image, "0", true);
+                if (!again(index, copies, start))
+                    break;
+                currentToken = body;
+            }
+            if (isZero(index)) {
+                consume(RIGHTPAREN);
+                consume(SEMICOLON);
+                return;
+            }
+
+            // the rest may not run at all: test first
+            String Start = cg.getLabel();
+            String End = cg.getLabel();
+            cg.resume(cg.getLine());
+            cg.WhileRotated(index, End, Start);
+            Token paren = currentToken;
+            currentToken = body;
+            statement();
+            cg.emitLoad(index);
+            cg.emitInstruction("JNZ", Start);
+            cg.emitLabel(End);
+            currentToken = paren;
+            consume(RIGHTPAREN);
+            consume(SEMICOLON);
+            return;
+        }
 
         String Start = cg.getLabel();
+        cg.probe(site + " entry");
         cg.emitLabel(Start);
+        cg.setAC(-1);   // back edge arrives with the condition in ac
+        cg.probe(site + " body");
 
         consume(DO);
 
@@ -702,13 +1800,27 @@ class R4DParser implements R4DConstants {
         consume(WHILE);
         consume(LEFTPAREN);
 
+        // a condition that is not a lone variable jumps back
+        // directly when it holds
+        if (!simple()) {
+            condition(true, Start);
+            consume(RIGHTPAREN);
+            consume(SEMICOLON);
+            return;
+        }
+
         T = currentToken;
 
         consume(ID);
 
         int index = st.enter(T.image, "0", true);
 
-        cg.doWhile(index, Start);
+        // a hot back edge falls through to nothing: branch straight back
+        long[] counts = profileSite(site);
+        if (counts != null && counts[1] - counts[0] > counts[0])
+            cg.doWhileHot(index, Start);
+        else
+            cg.doWhile(index, Start);
 
         consume(RIGHTPAREN);
         consume(SEMICOLON);
@@ -716,13 +1828,39 @@ class R4DParser implements R4DConstants {
     }
 
     //-----------------------------------------
-    private void whileStatement() {
-        consume(WHILE);
-        consume(LEFTPAREN);
-
+    // An unrolled do whose condition is not a lone variable:
+    // after the first copy of the body it runs as a rotated
+    // while loop, parsing the body and the condition again.
+    //
+    private void doRest(Token body) {
         String Start = cg.getLabel();
         String End = cg.getLabel();
+        Token condition = currentToken;
+        condition(false, End);
+        Token paren = currentToken;
+        cg.emitLabel(Start);
+        cg.setAC(-1);
+        currentToken = body;
+        statement();
+        currentToken = condition;
+        condition(true, Start);
+        cg.emitLabel(End);
+        cg.setAC(-1);
+        currentToken = paren;
+        consume(RIGHTPAREN);
+        consume(SEMICOLON);
+    }
 
+    //-----------------------------------------
+    private void whileStatement() {
+        String site = siteKey(currentToken);
+        boolean unroll = unrolls(currentToken);
+        consume(WHILE);
+        consume(LEFTPAREN);
+        if (!simple()) {
+            whileCondition(site);
+            return;
+        }
 
         Token T = currentToken;
 
@@ -730,59 +1868,126 @@ class R4DParser implements R4DConstants {
 
         int index = st.enter(T.image, "0", true);
 
+        // at -O2 the body is copied while the counter is known
+        // not to be zero; the loop below runs what is left
+        if (unroll && cg.valueOf(index) != null && !isZero(index)) {
+            Token paren = currentToken;
+            consume(RIGHTPAREN);
+            Token body = currentToken;
+            int start = cg.codeSize();
+            for (int copies = 1; ; copies++) {
+                statement();
+                if (!again(index, copies, start))
+                    break;
+                currentToken = body;
+            }
+            if (isZero(index))
+                return;
+            currentToken = paren;
+            cg.resume(cg.getLine());
+        }
+
+        String Start = cg.getLabel();
+        String End = cg.getLabel();
+
+        // a loop that iterates more often than it is entered is
+        // rotated so the hot back edge is a single conditional jump
+        long[] counts = profileSite(site);
+        boolean rotate = counts != null && counts[1] > counts[0];
+
         //cg.emitLabel(Start);
-        cg.While(index, End, Start);
+        cg.probe(site + " entry");
+        if (rotate)
+            cg.WhileRotated(index, End, Start);
+        else
+            cg.While(index, End, Start);
+        cg.probe(site + " body");
 
 
         consume(RIGHTPAREN);
         statement();
         cg.emitLoad(index);
-        cg.emitInstruction("ja", Start);
+        cg.emitInstruction(rotate ? "JNZ" : "ja", Start);
         cg.emitLabel(End);
 
     }
 
+    //-----------------------------------------
+    // The rest of a while statement whose condition is not a
+    // lone variable.  A rotated loop tests the condition
+    // again at the bottom, parsing its tokens a second time.
+    //
+    private void whileCondition(String site) {
+        String Start = cg.getLabel();
+        String End = cg.getLabel();
+        long[] counts = profileSite(site);
+        boolean rotate = counts != null && counts[1] > counts[0];
+        Token condition = currentToken;
+
+        cg.probe(site + " entry");
+        if (!rotate) {
+            cg.emitLabel(Start);
+            cg.setAC(-1);
+        }
+        condition(false, End);
+        if (rotate) {
+            cg.emitLabel(Start);
+            cg.setAC(-1);
+        }
+        cg.probe(site + " body");
+
+        consume(RIGHTPAREN);
+        statement();
+        if (rotate) {
+            Token next = currentToken;
+            currentToken = condition;
+            condition(true, Start);
+            currentToken = next;
+        } else
+            cg.emitInstruction("ja", Start);
+        cg.emitLabel(End);
+        cg.setAC(-1);
+    }
+
     //-----------------------------------------
     private void ifStatement() {
         String Else = cg.getLabel();
+        String site = siteKey(currentToken);
 
+        cg.probe(site + " entry");
         consume(IF);
         consume(LEFTPAREN);
 
-        Token T = currentToken;
-        ;
-        consume(ID);
-        int index = st.enter(T.image, "0", true);
-        int ac = cg.IfCondition(index, Else);
+        boolean simple = simple();
+        int ac = ifCondition(Else);
 
         consume(RIGHTPAREN);
 
+        int thenStart = cg.mark();
+        cg.probe(site + " body");
         statement();
 
         if (currentToken.kind == ELSE) {
 
             String End = cg.getLabel();
+            int thenEnd = cg.mark();
             cg.emitInstruction("ja", End);
+            boolean first = true;
+            boolean elseIf;
             do {
                 cg.emitLabel(Else);
                 consume(ELSE);
 
 
-                if (currentToken.kind == IF) {
+                elseIf = currentToken.kind == IF;
+                if (elseIf) {
                     Else = cg.getLabel();
 
                     cg.setAC(ac);
 
                     consume(IF);
                     consume(LEFTPAREN);
-
-                    T = currentToken;
-                    ;
-                    consume(ID);
-
-
-                    index = st.enter(T.image, "0", true);
-                    ac = cg.IfCondition(index, Else);
+                    ac = ifCondition(Else);
                     consume(RIGHTPAREN);
 
                     statement();
@@ -790,13 +1995,26 @@ class R4DParser implements R4DConstants {
 
                 } else {
                     cg.setAC(ac);
+                    int elseStart = cg.mark();
                     statement();
-                }
 
+                    // plain if/else whose else arm is the hot one:
+                    // make the else arm the fall-through path
+                    long[] counts = profileSite(site);
+                    if (first && simple && counts != null
+                            && counts[0] - counts[1] > counts[1])
+                        cg.elseFirst(thenStart, thenEnd, elseStart, cg.mark());
+                }
 
+                first = false;
             }
-            while (currentToken.kind == ELSE);
+            // a plain else ends the chain; a further else
+            // belongs to an enclosing if
+            while (elseIf && currentToken.kind == ELSE);
 
+            // chain ended with "else if": its false exit
+            if (elseIf)
+                cg.emitLabel(Else);
             cg.emitLabel(End);
 
         } else {
@@ -806,6 +2024,193 @@ class R4DParser implements R4DConstants {
         cg.setAC(-1);
     }
 
+    //-----------------------------------------
+    // Whether the condition ahead is a lone variable, which
+    // is tested with a single JZ or JNZ.
+    //
+    private boolean simple() {
+        return currentToken.kind == ID && getToken(2).kind == RIGHTPAREN;
+    }
+
+    //-----------------------------------------
+    // Jump to Else unless the condition of an if holds;
+    // returns what ac holds on both paths, or -1.
+    //
+    private int ifCondition(String Else) {
+        if (!simple()) {
+            condition(false, Else);
+            return -1;
+        }
+        Token T = currentToken;
+        consume(ID);
+        int index = st.enter(T.image, "0", true);
+        return cg.IfCondition(index, Else);
+    }
+
+    //-----------------------------------------
+    // Code that jumps to label when the condition ahead is
+    // sense, and falls through when it is not:
+    //
+    //   condition -> conjunction { "||" conjunction }
+    //   conjunction -> comparison { "&&" comparison }
+    //   comparison -> "(" condition ")"
+    //               | expr [ ("<"|"<="|">"|">="|"=="|"!=") expr ]
+    //
+    // && and || short-circuit.  The tokens up to the closing
+    // parenthesis are scanned first for the operators between
+    // comparisons, so each comparison knows where its jump
+    // goes before its code is generated.
+    //
+    private void condition(boolean sense, String label) {
+        ArrayList<Integer> ops = new ArrayList<Integer>();
+        int depth = 0;
+        for (int i = 1; ; i++) {
+            int kind = getToken(i).kind;
+            if (kind == LEFTPAREN)
+                depth++;
+            else if (kind == RIGHTPAREN && depth-- == 0
+                    || kind == EOF || kind == SEMICOLON)
+                break;
+            else if (depth == 0 && (kind == AND || kind == OR))
+                ops.add(kind);
+        }
+        ops.add(EOF);
+
+        // a conjunction followed by || jumps out to True when
+        // it holds; the last one, when the condition jumps if
+        // false, goes straight to label when a comparison fails
+        String True = null;
+        int k = 0;
+        while (true) {
+            int end = k;
+            while (ops.get(end) == AND)
+                end++;
+            boolean last = ops.get(end) == EOF;
+            if (last && !sense) {
+                for (; k <= end; k++)
+                    comparison(false, label, ops.get(k));
+            } else {
+                if (!last && True == null)
+                    True = sense ? label : cg.getLabel();
+                String Skip = end > k ? cg.getLabel() : null;
+                for (; k < end; k++)
+                    comparison(false, Skip, ops.get(k));
+                comparison(true, last ? label : True, ops.get(k++));
+                if (Skip != null) {
+                    cg.emitLabel(Skip);
+                    cg.setAC(-1);
+                }
+            }
+            if (last)
+                break;
+        }
+        if (True != null && !sense) {
+            cg.emitLabel(True);
+            cg.setAC(-1);
+        }
+    }
+
+    //-----------------------------------------
+    // One comparison of a condition, then the && or || after
+    // it, if any (next).
+    //
+    private void comparison(boolean sense, String label, int next) {
+        if (group()) {
+            consume(LEFTPAREN);
+            condition(sense, label);
+            consume(RIGHTPAREN);
+        } else {
+            int temp = cg.getTempIndex();
+            int left = expr();
+            int rel = 0;
+            int right = -1;
+            if (currentToken.kind >= LT && currentToken.kind <= NE) {
+                rel = currentToken.kind;
+                consume(rel);
+                right = expr();
+            }
+            cg.jumpIf(left, rel, right, sense, label, temp);
+        }
+        if (next != EOF)
+            consume(next);
+    }
+
+    //-----------------------------------------
+    // Whether a parenthesized condition is ahead, rather than
+    // an expression: one with a comparison, && or || that is
+    // not inside a further parenthesis.
+    //
+    private boolean group() {
+        if (currentToken.kind != LEFTPAREN)
+            return false;
+        int depth = 0;
+        for (int i = 2; ; i++) {
+            int kind = getToken(i).kind;
+            if (kind == LEFTPAREN)
+                depth++;
+            else if (kind == RIGHTPAREN && depth-- == 0
+                    || kind == EOF || kind == SEMICOLON)
+                return false;
+            else if (depth == 0 && (kind >= LT && kind <= NE
+                    || kind == AND || kind == OR))
+                return true;
+        }
+    }
+
+    //-----------------------------------------
+    // Loops are unrolled at -O2, except when counting for a
+    // profile, and with a profile only on hot lines.  The
+    // body's tokens stay on the token list, so each copy
+    // parses them again from the first.
+    //
+    private boolean unrolls(Token keyword) {
+        return unrolls(opts) && (opts.profile == null
+                || opts.profile.isHot(keyword.beginLine));
+    }
+
+    //-----------------------------------------
+    // Whether any loop may be unrolled under opts.
+    //
+    public static boolean unrolls(R4DOptions opts) {
+        return opts.optLevel > 1 && !(opts.optSize && opts.rolled)
+                && !opts.profileGen;
+    }
+
+    //-----------------------------------------
+    // Whether another copy of a body may follow the ones
+    // generated since start: the counter must still be known
+    // and not zero, and the copies within budget.
+    //
+    private boolean again(int index, int copies, int start) {
+        return cg.valueOf(index) != null && !isZero(index)
+                && copies < UNROLL_COPIES
+                && cg.codeSize() - start <= UNROLL_BUDGET;
+    }
+
+    //-----------------------------------------
+    private boolean isZero(int index) {
+        Integer value = cg.valueOf(index);
+        return value != null && value == 0;
+    }
+
+    //-----------------------------------------
+    // Profile key of the if/while/do statement starting at t.
+    //
+    private String siteKey(Token t) {
+        return tokenImage[t.kind].replace("\"", "") + " " +
+                t.beginLine + " " + t.beginColumn;
+    }
+
+    //-----------------------------------------
+    // {entries, body executions} recorded for a statement, or
+    // null when no profile is in use.
+    //
+    private long[] profileSite(String site) {
+        if (opts.profile == null)
+            return null;
+        return opts.profile.getSite(site);
+    }
+
     //-----------------------------------------
     private void readInt() {
         Token t;
@@ -821,8 +2226,9 @@ class R4DParser implements R4DConstants {
     //-----------------------------------------
     private void compoundStatement() {
         consume(OPEN);
-
+        depth++;
         statementList();
+        depth--;
         consume(CLOSE);
     }
 
@@ -831,12 +2237,26 @@ class R4DParser implements R4DConstants {
         int left;
         int expVal;
         int temp = cg.getTempIndex();
+        if (opts.optLevel > 1) {
+            expVal = cg.evaluate(exprTree());
+            cg.freeTemps(temp, expVal);
+            return expVal;
+        }
         left = term();
         expVal = termList(left);
-        cg.setTemp(temp);
+        cg.freeTemps(temp, expVal);
         return expVal;
     }
 
+    //-----------------------------------------
+    // Constant operands are folded at compile time except
+    // at -O0.
+    //
+    private boolean canFold(int left, int right) {
+        return opts.optLevel > 0
+                && st.isLDCConstant(left) && st.isLDCConstant(right);
+    }
+
     //-----------------------------------------
     private int termList(int left) {
         int temp;
@@ -846,13 +2266,8 @@ class R4DParser implements R4DConstants {
             case PLUS:
                 consume(PLUS);
                 right = term();
-                if (st.isLDCConstant(left) && st.isLDCConstant(right)) {
-                    int result = Integer.parseInt(st.getdwValue(left)) + Integer.parseInt(st.getdwValue(right));
-                    if (result >= 0) {
-                        temp = st.enter("@" + result, "" + result, false);
-                    } else {
-                        temp = st.enter("@_" + (result * (-1)), "" + result, false);
-                    }
+                if (canFold(left, right)) {
+                    temp = st.enterConstant(st.getValue(left) + st.getValue(right));
                 } else {
                     temp = cg.add(left, right);
                 }
@@ -862,13 +2277,8 @@ class R4DParser implements R4DConstants {
             case MINUS:
                 consume(MINUS);
                 right = term();
-                if (st.isLDCConstant(left) && st.isLDCConstant(right)) {
-                    int result = Integer.parseInt(st.getdwValue(left)) - Integer.parseInt(st.getdwValue(right));
-                    if (result >= 0) {
-                        temp = st.enter("@" + result, "" + result, false);
-                    } else {
-                        temp = st.enter("@_" + (result * (-1)), "" + result, false);
-                    }
+                if (canFold(left, right)) {
+                    temp = st.enterConstant(st.getValue(left) - st.getValue(right));
                 } else {
                     temp = cg.sub(left, right);
                 }
@@ -877,6 +2287,14 @@ class R4DParser implements R4DConstants {
 
             case RIGHTPAREN:
             case SEMICOLON:
+            case LT:
+            case LE:
+            case GT:
+            case GE:
+            case EQ:
+            case NE:
+            case AND:
+            case OR:
                 ;
                 return left;
             default:
@@ -891,7 +2309,7 @@ class R4DParser implements R4DConstants {
         int temp = cg.getTempIndex();
         left = factor();
         termVal = factorList(left);
-        cg.setTemp(temp);
+        cg.freeTemps(temp, termVal);
         return termVal;
     }
 
@@ -903,13 +2321,8 @@ class R4DParser implements R4DConstants {
             case TIMES:
                 consume(TIMES);
                 right = factor();
-                if (st.isLDCConstant(left) && st.isLDCConstant(right)) {
-                    int result = Integer.parseInt(st.getdwValue(left)) * Integer.parseInt(st.getdwValue(right));
-                    if (result >= 0) {
-                        temp = st.enter("@" + result, "" + result, false);
-                    } else {
-                        temp = st.enter("@_" + (result * (-1)), "" + result, false);
-                    }
+                if (canFold(left, right)) {
+                    temp = st.enterConstant(st.getValue(left) * st.getValue(right));
                 } else {
                     temp = cg.mult(left, right);
                 }
@@ -920,13 +2333,8 @@ class R4DParser implements R4DConstants {
             case DIV:
                 consume(DIV);
                 right = factor();
-                if (st.isLDCConstant(left) && st.isLDCConstant(right)) {
-                    int result = Integer.parseInt(st.getdwValue(left)) / Integer.parseInt(st.getdwValue(right));
-                    if (result >= 0) {
-                        temp = st.enter("@" + result, "" + result, false);
-                    } else {
-                        temp = st.enter("@_" + (result * (-1)), "" + result, false);
-                    }
+                if (canFold(left, right)) {
+                    temp = st.enterConstant(st.getValue(left) / st.getValue(right));
                 } else {
                     temp = cg.div(left, right);
                 }
@@ -938,6 +2346,14 @@ class R4DParser implements R4DConstants {
             case RIGHTPAREN:
 
             case SEMICOLON:
+            case LT:
+            case LE:
+            case GT:
+            case GE:
+            case EQ:
+            case NE:
+            case AND:
+            case OR:
                 ;
                 return left;
             default:
@@ -954,7 +2370,7 @@ class R4DParser implements R4DConstants {
         switch (currentToken.kind) {
             case UNSIGNED:
                 consume(UNSIGNED);
-                index = st.enter("@" + t.image, t.image, false);
+                index = st.enter("@" + t.image, R4DSymbol.CONSTANT, t.image, false);
                 return index;
             case PLUS:
                 consume(PLUS);
@@ -978,16 +2394,9 @@ class R4DParser implements R4DConstants {
                     int temp;
                     index = factor();
                     if (st.isLDCConstant(index)) {
-                        int result = Integer.parseInt(st.getdwValue(index));
-
-                        if (result > 0) {
-                            temp = st.enter("@_" + result, "-" + result, false);
-                        } else {
-                            temp = st.enter("@" + (result * (-1)), "" + result * (-1), false);
-                        }
-                        return temp;
+                        return st.enterConstant(-st.getValue(index));
                     } else {
-                        temp = st.enter("@_1", "-1", false);
+                        temp = st.enterConstant(-1);
                         int y = cg.mult(temp, index);
                         return y;
                     }
@@ -1005,37 +2414,170 @@ class R4DParser implements R4DConstants {
                 throw genEx("Expecting factor");
         }
     }
-}                                     // end of R4DParser
-
-//======================================================
-class R4DCodeGen {
-    private PrintWriter outFile;
-    private R4DSymTab st;
-    static int tempIndex = 0;
-    static int ac = -1;
-    static int label = 0;
 
     //-----------------------------------------
-    public R4DCodeGen(PrintWriter outFile, R4DSymTab st) {
-        this.outFile = outFile;
-        this.st = st;
+    // At -O2 an expression is parsed into a tree and the code
+    // generator chooses the order of evaluation.
+    //
+    private R4DExpr exprTree() {
+        R4DExpr left = termTree();
+        while (true)
+            switch (currentToken.kind) {
+                case PLUS:
+                case MINUS:
+                    int op = currentToken.kind;
+                    consume(op);
+                    left = fold(op, left, termTree());
+                    break;
+                case RIGHTPAREN:
+                case SEMICOLON:
+                case LT:
+                case LE:
+                case GT:
+                case GE:
+                case EQ:
+                case NE:
+                case AND:
+                case OR:
+                    return left;
+                default:
+                    throw genEx("Expecting \"+\", \"-\", \")\", or \";\"");
+            }
     }
 
     //-----------------------------------------
-    //------------------------------------------
-    public int add(int left, int right) {
-
-        if (ac == left) {
+    private R4DExpr termTree() {
+        R4DExpr left = factorTree();
+        while (true)
+            switch (currentToken.kind) {
+                case TIMES:
+                case DIV:
+                    int op = currentToken.kind;
+                    consume(op);
+                    left = fold(op, left, factorTree());
+                    break;
+                case PLUS:
+                case MINUS:
+                case RIGHTPAREN:
+                case SEMICOLON:
+                case LT:
+                case LE:
+                case GT:
+                case GE:
+                case EQ:
+                case NE:
+                case AND:
+                case OR:
+                    return left;
+                default:
+                    throw genEx("Expecting op, \")\", or \";\"");
+            }
+    }
 
-            emitInstruction("add", right);
-            st.setNeedsdw(right);
-        } else if (ac == right) {
-            emitInstruction("add", left);
-            st.setNeedsdw(left);
-        } else {
-            if (ac != -1) {
-                if (st.isTemp(ac)) {
-                    emitInstruction("st", ac);
+    //-----------------------------------------
+    private R4DExpr factorTree() {
+        Token t = currentToken;
+        switch (currentToken.kind) {
+            case UNSIGNED:
+                consume(UNSIGNED);
+                return new R4DExpr(st.enter("@" + t.image, R4DSymbol.CONSTANT,
+                        t.image, false));
+            case PLUS:
+                consume(PLUS);
+                return factorTree();
+            case MINUS:
+                boolean negate = true;
+                consume(MINUS);
+                while (currentToken.kind == MINUS || currentToken.kind == PLUS) {
+                    if (currentToken.kind == MINUS)
+                        negate = !negate;
+                    consume(currentToken.kind);
+                }
+                R4DExpr e = factorTree();
+                if (!negate)
+                    return e;
+                if (e.isLeaf() && st.isLDCConstant(e.index))
+                    return new R4DExpr(cg.constant(-st.getValue(e.index)));
+                return new R4DExpr(MINUS, e, null);
+            case ID:
+                consume(ID);
+                return new R4DExpr(st.enter(t.image, "0", true));
+            case LEFTPAREN:
+                consume(LEFTPAREN);
+                e = exprTree();
+                consume(RIGHTPAREN);
+                return e;
+            default:
+                throw genEx("Expecting factor");
+        }
+    }
+
+    //-----------------------------------------
+    private R4DExpr fold(int op, R4DExpr left, R4DExpr right) {
+        if (!left.isLeaf() || !right.isLeaf() || !canFold(left.index, right.index))
+            return new R4DExpr(op, left, right);
+        int l = st.getValue(left.index);
+        int r = st.getValue(right.index);
+        switch (op) {
+            case PLUS:
+                return new R4DExpr(cg.constant(l + r));
+            case MINUS:
+                return new R4DExpr(cg.constant(l - r));
+            case TIMES:
+                return new R4DExpr(cg.constant(l * r));
+            default:
+                return new R4DExpr(cg.constant(l / r));
+        }
+    }
+}                                     // end of R4DParser
+
+//======================================================
+class R4DCodeGen {
+    private R4DCode code;
+    private R4DSymTab st;
+    private R4DOptions opts;
+    private int tempIndex = 0;
+    private int ac = -1;
+    private int label = 0;
+
+    // -O2: output known at compile time and not yet emitted,
+    // and variables whose value is known since the last label
+    private StringBuilder pending = new StringBuilder();
+    private int pendingItems;
+    private Integer pendingNumber;     // the only item, if a number
+    private int pendingLine;           // position of the first item
+    private int pendingColumn;
+    private int pendingIndex;          // and the record it goes in front of
+    private boolean holding;           // emitting without flushing
+    private HashMap<Integer, Integer> known = new HashMap<Integer, Integer>();
+
+    // -stacktemps: the temp in each stack slot, bottom first,
+    // -1 once freed
+    private ArrayList<Integer> stack = new ArrayList<Integer>();
+
+    //-----------------------------------------
+    public R4DCodeGen(R4DCode code, R4DSymTab st, R4DOptions opts) {
+        this.code = code;
+        this.st = st;
+        this.opts = opts;
+    }
+
+    //-----------------------------------------
+    //------------------------------------------
+    public int add(int left, int right) {
+        R4DCodeGenEvent event = begin("add", left, right);
+
+        if (ac == left) {
+
+            emitInstruction("add", right);
+            st.setNeedsdw(right);
+        } else if (ac == right) {
+            emitInstruction("add", left);
+            st.setNeedsdw(left);
+        } else {
+            if (ac != -1) {
+                if (st.isTemp(ac)) {
+                    emitInstruction("st", ac);
                     st.setNeedsdw(ac);
                 }
             }
@@ -1045,11 +2587,13 @@ class R4DCodeGen {
         }
         int temp = getTemp();
         ac = temp;
+        event.commit();
         return temp;
     }
 
     //-----------------------------------------
     public int mult(int left, int right) {
+        R4DCodeGenEvent event = begin("mult", left, right);
 
         if (ac == left) {
             emitInstruction("mult", right);
@@ -1070,12 +2614,13 @@ class R4DCodeGen {
         }
         int temp = getTemp();
         ac = temp;
-
+        event.commit();
         return temp;
     }
 
     //--------------------------------------
     public int div(int left, int right) {
+        R4DCodeGenEvent event = begin("div", left, right);
         if (ac != left) {
             if (ac != -1) {
                 if (st.isTemp(ac)) {
@@ -1090,39 +2635,69 @@ class R4DCodeGen {
         st.setNeedsdw(right);
         int temp = getTemp();
         ac = temp;
+        event.commit();
         return temp;
     }
 
     //----------------------------------------
     public int sub(int left, int right) {
+        R4DCodeGenEvent event = begin("sub", left, right);
 
-        if (ac != left) {
-            if (ac != -1) {
-                if (st.isTemp(ac)) {
-                    emitInstruction("st", ac);
-                    st.setNeedsdw(ac);
+        if (ac == right && ac != left && st.isTemp(right) && negate()) {
+            // -right + left, rather than storing right
+            int minus = constant(-1);
+            emitInstruction("mult", minus);
+            st.setNeedsdw(minus);
+            emitInstruction("add", left);
+            st.setNeedsdw(left);
+        } else {
+            if (ac != left) {
+                if (ac != -1) {
+                    if (st.isTemp(ac)) {
+                        emitInstruction("st", ac);
+                        st.setNeedsdw(ac);
+                    }
                 }
+                emitLoad(left);
             }
-            emitLoad(left);
+            emitInstruction("sub", right);
+            st.setNeedsdw(right);
         }
-        emitInstruction("sub", right);
-        st.setNeedsdw(right);
         int temp = getTemp();
         ac = temp;
+        event.commit();
         return ac;
     }
 
     //---------------------------------------
     public void assign(int left, int expVal) {
+        R4DCodeGenEvent event = begin("assign", left, expVal);
+        Integer value = valueOf(expVal);
+        // storing a known value cannot change queued output, so
+        // the queue stays open across it (unrolled loops print
+        // once); -Os keeps the store after the output instead,
+        // where ac still holds it
+        holding = value != null && opts.optLevel > 1
+                && !(opts.optSize && opts.rolled);
         if (ac != expVal)
             emitLoad(expVal);
         emitInstruction("st", left);
-        ac = left;
+        holding = false;
+        ac = pending.length() == 0 ? left : -1;   // flushing overwrites it
+        if (value != null && opts.optLevel > 1)
+            known.put(left, value);
+        else
+            known.remove(left);
+        event.commit();
 
     }
 
     //---------------------------------------
     public void println() {
+        if (opts.optLevel > 1) {
+            append("\\n", null);
+            return;
+        }
         emitInstruction("ldc", "'\\n'");
         emitInstruction("aout");
         ac = -1;
@@ -1130,7 +2705,10 @@ class R4DCodeGen {
 
     //---------------------------------------
     public void print(int expVal, int i) {
-        if (i == 1) {
+        Integer value = valueOf(expVal);
+        if (i == 1 && value != null && opts.optLevel > 1)
+            append("" + value, value);
+        else if (i == 1) {
             if (ac != expVal) {
                 emitLoad(expVal);
                 ac = expVal;
@@ -1144,20 +2722,103 @@ class R4DCodeGen {
         }
     }
 
+    //---------------------------------------
+    // Print string text (without quotes) at -O2.
+    //
+    public void printText(String text) {
+        append(text, null);
+    }
+
+    //---------------------------------------
+    // Value of a constant or of a variable known to hold one.
+    //
+    public Integer valueOf(int index) {
+        if (st.isLDCConstant(index))
+            return st.getValue(index);
+        return known.get(index);
+    }
+
+    //---------------------------------------
+    // Queue output whose text is known.  Until it is flushed
+    // ac is treated as unknown, since the flush overwrites it.
+    //
+    private void append(String text, Integer number) {
+        if (pendingItems == 0) {
+            pendingLine = code.getLine();
+            pendingColumn = code.getColumn();
+            pendingIndex = code.size();
+        }
+        pending.append(text);
+        pendingNumber = pendingItems++ == 0 ? number : null;
+        ac = -1;
+    }
+
+    //---------------------------------------
+    // Emit queued output: one sout for the merged text, or
+    // the usual code if it is a single number or newline.
+    // It is attributed to the statement that queued it and
+    // goes where that statement left off; since then only
+    // comments and stores held open by assign can have been
+    // added, and the output does not depend on those.
+    //
+    private void flush() {
+        if (pending.length() == 0 || holding)
+            return;
+        String text = pending.toString();
+        Integer number = pendingNumber;
+        boolean single = pendingItems == 1;
+        pending.setLength(0);
+        pendingItems = 0;
+        int line = code.getLine();
+        int column = code.getColumn();
+        int end = code.size();
+        code.moveTo(pendingLine, pendingColumn);
+
+        if (single && number != null) {
+            emitLoad(constant(number));
+            emitInstruction("dout");
+        } else if (text.equals("\\n")) {
+            emitInstruction("ldc", "'\\n'");
+            emitInstruction("aout");
+        } else {
+            String image = "\"" + text + "\"";
+            int index = st.getString(image);
+            if (index < 0)
+                index = st.enter(getLabel(), R4DSymbol.STRING, image, true);
+            emitInstruction("ldc", index);
+            emitInstruction("sout");
+        }
+        code.exchange(pendingIndex, end, end, code.size());
+        code.moveTo(line, column);
+        ac = -1;
+    }
+
     //-----------------------------------------
     public void getInt(String op) {
         int index = st.enter(op, "0", true);
+        known.remove(index);
         emitInstruction("din");
         emitInstruction("st", index);
         ac = -1;
     }
 
+    //-----------------------------------------
+    // Symbol for an integer constant.
+    //
+    public int constant(int value) {
+        return st.enterConstant(value);
+    }
+
     //-----------------------------------------
     public int getTemp() {
 
         String temp;
         temp = "@t" + tempIndex++;
-        return st.enter(temp, "0", false);
+        R4DTempEvent event = new R4DTempEvent();
+        event.temp = temp;
+        event.line = code.getLine();
+        event.commit();
+        return st.enter(temp, R4DSymbol.TEMP, "0", false);
     }
 
     //--------------------------------------------
@@ -1169,6 +2830,43 @@ class R4DCodeGen {
     //--------------------------------------------
     public void setTemp(int temp) {
         tempIndex = temp;
+        release();
+    }
+
+    //--------------------------------------------
+    // Free the temps allocated since getTempIndex returned
+    // temp, except the one holding result.
+    //
+    public void freeTemps(int temp, int result) {
+        tempIndex = temp;
+        if (st.isTemp(result)) {
+            int n = st.getValue(result);
+            if (n >= temp)
+                tempIndex = n + 1;
+        }
+        release();
+    }
+
+    //--------------------------------------------
+    // -stacktemps: free the stack slots of temps numbered
+    // tempIndex and up.  A slot under a live one is popped
+    // once that one is freed too.
+    //
+    private void release() {
+        if (!opts.stackTemps)
+            return;
+        for (int i = 0; i < stack.size(); i++) {
+            int t = stack.get(i);
+            if (t >= 0 && st.getValue(t) >= tempIndex)
+                stack.set(i, -1);
+        }
+        int k = 0;
+        while (!stack.isEmpty() && stack.get(stack.size() - 1) < 0) {
+            stack.remove(stack.size() - 1);
+            k++;
+        }
+        if (k > 0)
+            emitInstruction("dloc", "" + k);
     }
 
     //--------------------------------------------
@@ -1187,6 +2885,13 @@ class R4DCodeGen {
         emitLabel(End);
     }
 
+    //--------------------------------------------
+    public void doWhileHot(int opnd, String Start) {
+        if (ac != opnd)
+            emitLoad(opnd);
+        emitInstruction("JNZ", Start);
+    }
+
     //--------------------------------------------
     public void While(int opnd, String End, String Start) {
 
@@ -1195,6 +2900,16 @@ class R4DCodeGen {
         emitInstruction("JZ", End);
     }
 
+    //--------------------------------------------
+    // Test once on entry; the body then ends with JNZ Start.
+    //
+    public void WhileRotated(int opnd, String End, String Start) {
+
+        emitLoad(opnd);
+        emitInstruction("JZ", End);
+        emitLabel(Start);
+    }
+
     //--------------------------------------------
     public int IfCondition(int opnd, String Else) {
         String End = getLabel();
@@ -1204,29 +2919,260 @@ class R4DCodeGen {
         return ac;
     }
 
+    //--------------------------------------------
+    // Jump to label when "left rel right" is sense, where rel
+    // is R4DConstants.LT to NE, or 0 to test left for not
+    // zero.  The difference is tested in ac, taken the way
+    // round that needs only JN (jump if negative) and JZ:
+    // x > y is y - x < 0, x >= y is y - x <= 0.  The
+    // difference overflows when the signs differ, so for an
+    // ordering they are tested first with JN, and ac is left
+    // negative or 1 without subtracting.  Temps from temp up
+    // are freed before the jump.
+    //
+    public void jumpIf(int left, int rel, int right, boolean sense,
+                       String label, int temp) {
+        if (rel == 0) {
+            rel = R4DConstants.NE;
+            right = constant(0);
+        }
+        if (!sense)
+            rel = negation(rel);
+        boolean swap = rel == R4DConstants.GT || rel == R4DConstants.GE;
+        int from = swap ? right : left;
+        int by = swap ? left : right;
+        if (rel == R4DConstants.GT)
+            rel = R4DConstants.LT;
+        else if (rel == R4DConstants.GE)
+            rel = R4DConstants.LE;
+        boolean negative = rel != R4DConstants.EQ && rel != R4DConstants.NE;
+
+        // both sides known: the jump is taken always or never
+        Integer x = valueOf(from);
+        Integer y = valueOf(by);
+        if (opts.optLevel > 0 && x != null && y != null) {
+            setTemp(temp);
+            boolean taken = rel == R4DConstants.NE ? x.intValue() != y
+                    : rel != R4DConstants.LT && x.intValue() == y
+                    || negative && x < y;
+            if (taken)
+                emitInstruction("ja", label);
+            return;
+        }
+
+        if (!negative || y != null && y == 0) {
+            int diff = y != null && y == 0 ? from : sub(from, by);
+            if (ac != diff)
+                emitLoad(diff);
+            setTemp(temp);
+            test(rel, label);
+            if (st.isTemp(diff))
+                ac = -1;
+            return;
+        }
+
+        if (x != null)
+            from = constant(x);
+        if (y != null)
+            by = constant(y);
+        String Test = getLabel();
+        if (y != null) {
+            // from < 0 < y holds; y < 0 <= from does not
+            if (ac != from)
+                emitLoad(from);
+            if (y > 0)
+                emitInstruction("JN", Test);
+            else {
+                String Same = getLabel();
+                emitInstruction("JN", Same);
+                emitLoad(constant(1));
+                emitInstruction("ja", Test);
+                emitLabel(Same);
+            }
+        } else {
+            // by is subtracted from memory, and from may be
+            // loaded again after by's sign is tested
+            if (ac != -1 && st.isTemp(ac) && (ac == from || ac == by)) {
+                emitInstruction("st", ac);
+                st.setNeedsdw(ac);
+            }
+            if (ac != by)
+                emitLoad(by);
+            String Negative = getLabel();
+            emitInstruction("JN", Negative);
+            if (x != null && x < 0) {
+                emitLoad(from);
+                emitInstruction("ja", Test);
+                emitLabel(Negative);
+                ac = -1;
+                emitLoad(from);
+            } else {
+                String Same = getLabel();
+                emitLoad(from);
+                if (x == null) {
+                    emitInstruction("JN", Test);
+                    emitLabel(Same);
+                }
+                emitInstruction("sub", by);
+                st.setNeedsdw(by);
+                emitInstruction("ja", Test);
+                emitLabel(Negative);
+                ac = -1;
+                if (x == null) {
+                    emitLoad(from);
+                    emitInstruction("JN", Same);
+                }
+                emitLoad(constant(1));
+            }
+        }
+        if (y != null || x != null && x < 0) {
+            emitInstruction("sub", by);
+            st.setNeedsdw(by);
+        }
+        emitLabel(Test);
+        ac = -1;
+        setTemp(temp);
+        test(rel, label);
+    }
+
+    //--------------------------------------------
+    // Jump to label when the difference in ac is rel 0, where
+    // rel is R4DConstants.LT, LE, EQ or NE.
+    //
+    private void test(int rel, String label) {
+        if (rel == R4DConstants.NE)
+            emitInstruction("JNZ", label);
+        else {
+            if (rel != R4DConstants.EQ)
+                emitInstruction("JN", label);
+            if (rel != R4DConstants.LT)
+                emitInstruction("JZ", label);
+        }
+    }
+
+    //--------------------------------------------
+    // The relation that holds when rel does not.
+    //
+    private static int negation(int rel) {
+        switch (rel) {
+            case R4DConstants.LT:
+                return R4DConstants.GE;
+            case R4DConstants.GE:
+                return R4DConstants.LT;
+            case R4DConstants.GT:
+                return R4DConstants.LE;
+            case R4DConstants.LE:
+                return R4DConstants.GT;
+            case R4DConstants.EQ:
+                return R4DConstants.NE;
+            default:
+                return R4DConstants.EQ;
+        }
+    }
+
     //--------------------------------------------
     public void setAC(int AC) {
         ac = AC;
     }
 
+    //--------------------------------------------
+    // Source position of the statement being translated.
+    //
+    public void setLocation(int line, int column) {
+        code.setLocation(line, column);
+    }
+
+    //--------------------------------------------
+    public int getLine() {
+        return code.getLine();
+    }
+
+    //--------------------------------------------
+    public int getColumn() {
+        return code.getColumn();
+    }
+
+    //--------------------------------------------
+    // Mark the start of a top-level statement, unless output
+    // is still queued from the one before.
+    //
+    public void boundary() {
+        if (pending.length() == 0)
+            code.boundary();
+    }
+
+    //--------------------------------------------
+    // Position of the next record, for later reordering.
+    //
+    public int mark() {
+        flush();
+        return code.size();
+    }
+
+    //--------------------------------------------
+    // Records generated so far, not counting comments, which
+    // differ with the echo, or queued output.
+    //
+    public int codeSize() {
+        return code.size() - code.comments();
+    }
+
+    //--------------------------------------------
+    // List what follows under source line lineNumber.
+    //
+    public void resume(int lineNumber) {
+        code.resume(lineNumber);
+    }
+
+    //--------------------------------------------
+    // Counting point for -profile-gen; emits no code.
+    //
+    public void probe(String key) {
+        flush();
+        if (opts.profileGen)
+            code.probe(key);
+    }
+
+    //--------------------------------------------
+    // Reorder an if/else so the else arm falls through: the JZ
+    // just before thenStart becomes JNZ to the old else label,
+    // which now heads the then arm.
+    //
+    //   JZ Else; then; ja End; Else: else
+    //   JNZ Else; else; ja End; Else: then
+    //
+    public void elseFirst(int thenStart, int thenEnd,
+                          int elseStart, int elseEnd) {
+        int jz = thenStart - 1;
+        while (code.get(jz).kind != R4DInstr.OP)  // skip source echo
+            jz--;
+        code.get(jz).op = "JNZ";
+        code.exchange(thenStart, thenEnd, elseStart, elseEnd);
+    }
+
     public void emitLabel(String op) {
-        outFile.printf("%-4s:%n", op);
+        flush();
+        known.clear();          // control may arrive from elsewhere
+        code.label(op);
     }
 
     //--------------------------------------------
     private void emitInstruction(String op) {
-        outFile.printf("          %-4s%n", op);
+        flush();
+        code.instruction(op, null);
     }
 
     //-----------------------------------------
     public void emitInstruction(String op, String opnd) {
-        outFile.printf("          %-4s      %s%n", op, opnd);
+        flush();
+        code.instruction(op, opnd);
     }
 
     //-----------------------------------------
     public void emitLoad(int opnd) {
+        R4DCodeGenEvent event = begin("emitLoad", opnd, -1);
 
-        if (st.isLDCConstant(opnd) && Integer.parseInt(st.getdwValue(opnd)) < 4095 && Integer.parseInt(st.getdwValue(opnd)) >= 0) {
+        if (st.isLDCConstant(opnd) && st.getValue(opnd) < 4095 && st.getValue(opnd) >= 0) {
             emitInstruction("ldc", st.getdwValue(opnd));
             ac = -1;
         } else if (opnd != ac) {
@@ -1235,31 +3181,4430 @@ class R4DCodeGen {
             st.setNeedsdw(opnd);
             ac = opnd;
         }
+        event.commit();
     }
 
     //-----------------------------------------
     private void emitdw(String label, String value) {
-        outFile.printf(
-                "%-9s dw        %s%n", label + ":", value);
+        code.dw(label, value);
     }
 
     //--------------------------------------------
     private void emitInstruction(String op, int opndIndex) {
-        emitInstruction(op, st.getSymbol(opndIndex));
+        if (opts.stackTemps && st.isTemp(opndIndex))
+            emitStack(op, opndIndex);
+        else
+            emitInstruction(op, st.getSymbol(opndIndex));
     }
 
-    //-----------------------------------------
-    public void endCode() {
-        outFile.println();
-        emitInstruction("            halt");
+    //--------------------------------------------
+    // A temp is pushed when first stored; after that it is
+    // addressed relative to the top of the stack (ldr 0 is
+    // the top), with the register form of the instruction.
+    //
+    private void emitStack(String op, int temp) {
+        int slot = stack.lastIndexOf(temp);
+        if (op.equals("st") && slot < 0) {
+            stack.add(temp);
+            emitInstruction("push");
+        } else if (slot < 0)
+            throw new RuntimeException("Temp " + st.getSymbol(temp)
+                    + " is not on the stack");
+        else
+            emitInstruction(op + "r", "" + (stack.size() - 1 - slot));
+    }
 
-        int size = st.getSize();
-        // emit dw for each symbol in the symbol table
-        for (int i = 0; i < size; i++)
-            if (st.getNeedsdw(i))
-                emitdw(st.getSymbol(i), st.getdwValue(i));
+    //--------------------------------------------
+    // Evaluate an -O2 expression tree.  Sums and products are
+    // flattened and their constants combined.  Of the operands
+    // that need the accumulator, one is computed last and the
+    // others are stored in temps first, so nothing is stored
+    // and reloaded just to restore operand order; a minus is
+    // folded into a constant factor, or done by negating.
+    //
+    public int evaluate(R4DExpr e) {
+        if (e.isLeaf())
+            return e.index;
+        ArrayList<Term> terms = new ArrayList<Term>();
+        addTerms(e, 1, terms);
+
+        int c = 0;
+        int leaf = -1;
+        boolean code = false;
+        for (Term t : terms) {
+            if (t.factors.isEmpty())
+                c += t.coef;
+            else if (t.coef == 1 && t.factors.size() == 1
+                    && t.factors.get(0).isLeaf() && leaf < 0)
+                leaf = t.factors.get(0).index;
+            else
+                code = true;
+        }
+        if (!code && leaf < 0)
+            return constant(c);
+        if (!code && c == 0)
+            return leaf;                    // e.g. x + 0
+
+        // a live temp in ac, the left side of a comparison, is
+        // stored before ac is reused
+        if (ac != -1 && st.isTemp(ac) && st.getValue(ac) < tempIndex) {
+            emitInstruction("st", ac);
+            st.setNeedsdw(ac);
+        }
+        evaluateSum(terms);
+        int temp = getTemp();
+        ac = temp;
+        return temp;
     }
-}                                    // end of R4DCodeGen
+
+    //--------------------------------------------
+    // A product coef * factors; a sum is a list of these.
+    //
+    private static class Term {
+        int coef;
+        ArrayList<R4DExpr> factors = new ArrayList<R4DExpr>();
+
+        boolean isSimple() {           // one add or sub does it
+            return (coef == 1 || coef == -1) && factors.size() == 1
+                    && factors.get(0).isLeaf();
+        }
+    }
+
+    //--------------------------------------------
+    // Whether to subtract a value in ac by negating it; by
+    // default only at -O2.
+    //
+    private boolean negate() {
+        return opts.negate < 0 ? opts.optLevel > 1 : opts.negate > 0;
+    }
+
+    //--------------------------------------------
+    private void addTerms(R4DExpr e, int coef, ArrayList<Term> terms) {
+        if (e.op == R4DConstants.PLUS) {
+            addTerms(e.left, coef, terms);
+            addTerms(e.right, coef, terms);
+        } else if (e.op == R4DConstants.MINUS) {
+            if (e.right == null)
+                addTerms(e.left, -coef, terms);
+            else {
+                addTerms(e.left, coef, terms);
+                addTerms(e.right, -coef, terms);
+            }
+        } else {
+            Term t = new Term();
+            t.coef = coef;
+            addFactors(e, t);
+            // x * 0 is 0 unless a division in it must trap
+            if (t.coef == 0 && t.factors.size() > 0 && leavesOnly(t))
+                t.factors.clear();
+            terms.add(t);
+        }
+    }
+
+    //--------------------------------------------
+    private void addFactors(R4DExpr e, Term t) {
+        if (e.op == R4DConstants.TIMES) {
+            addFactors(e.left, t);
+            addFactors(e.right, t);
+        } else if (e.op == R4DConstants.MINUS && e.right == null) {
+            t.coef = -t.coef;
+            addFactors(e.left, t);
+        } else if (e.isLeaf() && valueOf(e.index) != null)
+            t.coef *= valueOf(e.index);     // constant or known variable
+        else
+            t.factors.add(e);
+    }
+
+    //--------------------------------------------
+    private boolean leavesOnly(Term t) {
+        for (R4DExpr f : t.factors)
+            if (!f.isLeaf())
+                return false;
+        return true;
+    }
+
+    //--------------------------------------------
+    // Leave the value of e in ac.
+    //
+    private void evaluateInto(R4DExpr e) {
+        if (e.isLeaf())
+            emitLoad(e.index);
+        else if (e.op == R4DConstants.DIV) {
+            // the divisor first, so the dividend ends up in ac
+            if (e.right.isLeaf()) {
+                evaluateInto(e.left);
+                apply("div", e.right.index);
+            } else {
+                evaluateInto(e.right);
+                int t = spill();
+                evaluateInto(e.left);
+                apply("div", t);
+            }
+        } else {
+            ArrayList<Term> terms = new ArrayList<Term>();
+            addTerms(e, 1, terms);
+            evaluateSum(terms);
+        }
+        ac = -1;
+    }
+
+    //--------------------------------------------
+    private void evaluateSum(ArrayList<Term> terms) {
+        int c = 0;
+        ArrayList<Term> simple = new ArrayList<Term>();
+        ArrayList<Term> complex = new ArrayList<Term>();
+        for (Term t : terms) {
+            if (t.factors.isEmpty())
+                c += t.coef;
+            else if (t.isSimple())
+                simple.add(t);
+            else
+                complex.add(t);
+        }
+
+        // keep in ac a term whose sign costs nothing
+        Term first = null;
+        for (Term t : complex)
+            if (first == null && t.coef != -1)
+                first = t;
+        if (first == null && !complex.isEmpty())
+            first = complex.get(0);
+
+        // without negation such a term is stored as well, when
+        // something else can start the sum
+        boolean other = c != 0;
+        for (Term t : simple)
+            other |= t.coef == 1;
+        if (first != null && first.coef == -1 && !negate() && other)
+            first = null;
+
+        // every other complex term is computed and stored
+        // first, then added or subtracted like a variable
+        for (Term t : complex) {
+            if (t == first)
+                continue;
+            Term s = new Term();
+            s.coef = t.coef < 0 ? -1 : 1;
+            t.coef = t.coef < 0 ? -t.coef : t.coef;
+            evaluateProduct(t);
+            s.factors.add(new R4DExpr(spill()));
+            simple.add(s);
+        }
+
+        if (first != null)
+            evaluateProduct(first);
+        else {
+            Term start = null;
+            for (Term t : simple)
+                if (t.coef == 1 && (start == null
+                        || t.factors.get(0).index == ac))
+                    start = t;
+            if (start != null) {
+                emitLoad(start.factors.get(0).index);
+                simple.remove(start);
+            } else {
+                emitLoad(constant(c));
+                c = 0;
+            }
+        }
+
+        for (Term t : simple)
+            apply(t.coef == 1 ? "add" : "sub", t.factors.get(0).index);
+        if (c < 0 && c != Integer.MIN_VALUE)
+            apply("sub", constant(-c));
+        else if (c != 0)
+            apply("add", constant(c));
+    }
+
+    //--------------------------------------------
+    private void evaluateProduct(Term t) {
+        ArrayList<R4DExpr> simple = new ArrayList<R4DExpr>();
+        R4DExpr last = null;
+        for (R4DExpr f : t.factors) {
+            if (f.isLeaf())
+                simple.add(f);
+            else if (last == null)
+                last = f;
+            else {
+                evaluateInto(f);
+                simple.add(new R4DExpr(spill()));
+            }
+        }
+
+        int coef = t.coef;
+        if (last != null)
+            evaluateInto(last);
+        else {
+            // a small coefficient loads with ldc, saving its dw
+            R4DExpr start = simple.get(0);
+            for (R4DExpr f : simple)
+                if (f.index == ac)
+                    start = f;
+            if (start.index != ac && coef > 1 && coef < 4095) {
+                emitLoad(constant(coef));
+                coef = 1;
+            } else {
+                emitLoad(start.index);
+                simple.remove(start);
+            }
+        }
+
+        for (R4DExpr f : simple)
+            apply("mult", f.index);
+        if (coef != 1)
+            apply("mult", constant(coef));
+    }
+
+    //--------------------------------------------
+    private void apply(String op, int opnd) {
+        emitInstruction(op, opnd);
+        st.setNeedsdw(opnd);
+        ac = -1;
+    }
+
+    //--------------------------------------------
+    // Store ac in a new temp.
+    //
+    private int spill() {
+        int t = getTemp();
+        emitInstruction("st", t);
+        st.setNeedsdw(t);
+        return t;
+    }
+
+    //-----------------------------------------
+    public void endCode() {
+        R4DEndCodeEvent event = new R4DEndCodeEvent();
+        event.begin();
+        flush();
+        code.text("");
+        emitInstruction("            halt");
+
+        // at -O2, each block is cleaned up, then stores never
+        // read go, and so do their words; temps (at -Os,
+        // variables too) share words.  What one round removes
+        // can leave more for the next, so rounds repeat until
+        // the code stops shrinking.
+        HashSet<String> used = null;
+        if (opts.optLevel > 1) {
+            int before;
+            do {
+                before = code.instructions();
+                R4DPeephole.run(code);
+                used = R4DLiveness.run(code, opts.unit, opts.optSize);
+            } while (code.instructions() < before);
+        }
+
+        int size = st.getSize();
+        // emit dw for each symbol in the symbol table
+        for (int i = 0; i < size; i++) {
+            if (st.getNeedsdw(i) && !(opts.stackTemps && st.isTemp(i))
+                    && (used == null || used.contains(st.getSymbol(i)))) {
+                emitdw(st.getSymbol(i), st.getdwValue(i));
+                event.dws++;
+            }
+        }
+        event.instructions = code.instructions();
+        event.commit();
+    }
+
+    //-----------------------------------------
+    // Start timing a code generator call for JFR.
+    //
+    private R4DCodeGenEvent begin(String call, int left, int right) {
+        R4DCodeGenEvent event = new R4DCodeGenEvent();
+        if (event.isEnabled()) {
+            event.call = call;
+            event.left = st.getSymbol(left);
+            event.right = right >= 0 ? st.getSymbol(right) : null;
+            event.line = code.getLine();
+            event.begin();
+        }
+        return event;
+    }
+}                                    // end of R4DCodeGen
+
+//======================================================
+// Java Flight Recorder events, category "R4D Compiler".
+// They cost next to nothing unless a recording enables
+// them, e.g.  java -XX:StartFlightRecording:filename=c.jfr
+//
+@Name("r4d.File")
+@Label("Source File")
+@Category("R4D Compiler")
+@Description("Source file opened or read in full")
+class R4DFileEvent extends Event {
+    @Label("Path")
+    String path;
+    @Label("Operation")
+    String operation;
+    @Label("Lines")
+    int lines;
+}                                     // end of R4DFileEvent
+
+//======================================================
+@Name("r4d.Line")
+@Label("Source Line")
+@Category("R4D Compiler")
+@Description("Token manager reads a source line")
+class R4DLineEvent extends Event {
+    @Label("Line")
+    int line;
+    @Label("Length")
+    int length;
+}                                     // end of R4DLineEvent
+
+//======================================================
+@Name("r4d.Statement")
+@Label("Statement")
+@Category("R4D Compiler")
+@Description("Parse and translation of one statement")
+class R4DStatementEvent extends Event {
+    @Label("Statement")
+    String statement;
+    @Label("Line")
+    int line;
+    @Label("Column")
+    int column;
+}                                // end of R4DStatementEvent
+
+//======================================================
+@Name("r4d.CodeGen")
+@Label("Code Generator Call")
+@Category("R4D Compiler")
+class R4DCodeGenEvent extends Event {
+    @Label("Call")
+    String call;
+    @Label("Left Operand")
+    String left;
+    @Label("Right Operand")
+    String right;
+    @Label("Line")
+    int line;
+}                                  // end of R4DCodeGenEvent
+
+//======================================================
+@Name("r4d.Temp")
+@Label("Temp Allocated")
+@Category("R4D Compiler")
+class R4DTempEvent extends Event {
+    @Label("Temp")
+    String temp;
+    @Label("Line")
+    int line;
+}                                     // end of R4DTempEvent
+
+//======================================================
+@Name("r4d.EndCode")
+@Label("End Code")
+@Category("R4D Compiler")
+@Description("Emission of halt and the dw section")
+class R4DEndCodeEvent extends Event {
+    @Label("Instructions")
+    int instructions;
+    @Label("Data Words")
+    int dws;
+}                                  // end of R4DEndCodeEvent
+
+//======================================================
+// Expression tree built at -O2.  A leaf holds a symbol
+// table index; MINUS without a right operand is negation.
+//
+class R4DExpr implements R4DConstants {
+    int op;                        // PLUS, MINUS, TIMES, DIV or ID
+    int index;                     // ID: the operand
+    R4DExpr left;
+    R4DExpr right;
+
+    //-----------------------------------------
+    public R4DExpr(int index) {
+        op = ID;
+        this.index = index;
+    }
+
+    //-----------------------------------------
+    public R4DExpr(int op, R4DExpr left, R4DExpr right) {
+        this.op = op;
+        this.left = left;
+        this.right = right;
+    }
+
+    //-----------------------------------------
+    public boolean isLeaf() {
+        return op == ID;
+    }
+}                                          // end of R4DExpr
+
+//======================================================
+// One line of generated output: an instruction, a label,
+// a dw, or text copied through verbatim.
+//
+class R4DInstr {
+    static final int TEXT = 0;     // comment, blank line, directive
+    static final int LABEL = 1;
+    static final int OP = 2;
+    static final int DW = 3;
+    static final int PROBE = 4;    // profile counter, never written
+
+    int kind;
+    String label;                  // LABEL/DW name, PROBE key
+    String op;                     // OP mnemonic, TEXT line
+    String opnd;                   // OP operand (may be null), DW value
+    int line;                      // source line it was generated from
+    int column;                    // column of that statement, 0 if unknown
+}
+
+//======================================================
+class R4DCode {
+    private ArrayList<R4DInstr> code;
+    private ArrayList<Integer> boundaries = new ArrayList<Integer>();
+    private int line;
+    private int column;
+    private boolean located;     // positions come from setLocation
+    private HashMap<Integer, String> echoes;   // kept for resume, if asked
+    private int listed;          // line of the last echo
+    private int comments;        // TEXT records
+
+    // -stream: records before the last are written out here
+    // as soon as the next one starts, and not kept
+    private R4DEmitter sink;
+    private int written;
+    private int writtenOps;
+
+    //-----------------------------------------
+    public R4DCode() {
+        code = new ArrayList<R4DInstr>();
+        line = 0;
+        column = 0;
+    }
+
+    //-----------------------------------------
+    private R4DInstr add(int kind) {
+        if (sink != null)
+            drain();
+        R4DInstr i = new R4DInstr();
+        i.kind = kind;
+        i.line = line;
+        i.column = column;
+        code.add(i);
+        return i;
+    }
+
+    //-----------------------------------------
+    public void text(String s) {
+        add(R4DInstr.TEXT).op = s;
+        comments++;
+    }
+
+    //-----------------------------------------
+    // Echo a source line as a comment; unless the parser
+    // supplies positions, code generated from here on is
+    // attributed to that line.
+    //
+    public void source(int lineNumber, String s) {
+        if (!located)
+            line = lineNumber;
+        if (echoes != null)
+            echoes.put(lineNumber, s);
+        listed = lineNumber;
+        text("; " + s);
+    }
+
+    //-----------------------------------------
+    // Keep every line echoed from now on, so resume can echo
+    // it again.  Without this the echoes take no memory.
+    //
+    public void keepEchoes() {
+        echoes = new HashMap<Integer, String>();
+    }
+
+    //-----------------------------------------
+    // Echo an earlier source line again, as ";<line>: text",
+    // unless it is the last one echoed.  Code generated from
+    // tokens parsed a second time, as for the copies of an
+    // unrolled loop, is then listed under its own line.
+    //
+    public void resume(int lineNumber) {
+        String s = echoes != null ? echoes.get(lineNumber) : null;
+        if (s == null || lineNumber == listed)
+            return;
+        if (!located)
+            line = lineNumber;
+        listed = lineNumber;
+        text(";" + lineNumber + ": " + s);
+    }
+
+    //-----------------------------------------
+    public void setLocation(int lineNumber, int columnNumber) {
+        located = true;
+        line = lineNumber;
+        column = columnNumber;
+    }
+
+    //-----------------------------------------
+    // Attribute what follows to an earlier position, without
+    // changing where positions come from.
+    //
+    public void moveTo(int lineNumber, int columnNumber) {
+        line = lineNumber;
+        column = columnNumber;
+    }
+
+    //-----------------------------------------
+    public int getLine() {
+        return line;
+    }
+
+    //-----------------------------------------
+    public int getColumn() {
+        return column;
+    }
+
+    //-----------------------------------------
+    public void label(String l) {
+        add(R4DInstr.LABEL).label = l;
+    }
+
+    //-----------------------------------------
+    public void instruction(String op, String opnd) {
+        R4DInstr i = add(R4DInstr.OP);
+        i.op = op;
+        i.opnd = opnd;
+    }
+
+    //-----------------------------------------
+    public void dw(String l, String value) {
+        R4DInstr i = add(R4DInstr.DW);
+        i.label = l;
+        i.opnd = value;
+    }
+
+    //-----------------------------------------
+    public void probe(String key) {
+        add(R4DInstr.PROBE).label = key;
+    }
+
+    //-----------------------------------------
+    // Append a record built elsewhere, keeping its position.
+    //
+    public void add(R4DInstr i) {
+        code.add(i);
+    }
+
+    //-----------------------------------------
+    // The next record starts a top-level statement.
+    //
+    public void boundary() {
+        if (sink == null)
+            boundaries.add(code.size());
+    }
+
+    //-----------------------------------------
+    // From now on write records to out as they are made.
+    // Only the last record can be read back or changed.
+    //
+    public void stream(R4DEmitter out) {
+        sink = out;
+    }
+
+    //-----------------------------------------
+    private void drain() {
+        try {
+            for (R4DInstr i : code) {
+                sink.record(i);
+                if (i.kind == R4DInstr.OP)
+                    writtenOps++;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+        written += code.size();
+        code.clear();
+    }
+
+    //-----------------------------------------
+    // Replace every record; boundaries are record indices
+    // into the new list.
+    //
+    public void replace(ArrayList<R4DInstr> records,
+                        ArrayList<Integer> boundaries) {
+        code = records;
+        this.boundaries = boundaries;
+        comments = 0;
+        for (R4DInstr i : code)
+            if (i.kind == R4DInstr.TEXT)
+                comments++;
+    }
+
+    //-----------------------------------------
+    // Delete the records marked dead.  A boundary at one
+    // moves to the next record kept.
+    //
+    public void remove(boolean[] dead) {
+        ArrayList<R4DInstr> kept = new ArrayList<R4DInstr>();
+        int[] index = new int[code.size() + 1];
+        for (int i = 0; i < code.size(); i++) {
+            index[i] = kept.size();
+            if (!dead[i])
+                kept.add(code.get(i));
+        }
+        index[code.size()] = kept.size();
+        ArrayList<Integer> moved = new ArrayList<Integer>();
+        for (int b : boundaries)
+            moved.add(index[b]);
+        replace(kept, moved);
+    }
+
+    //-----------------------------------------
+    public ArrayList<Integer> getBoundaries() {
+        return boundaries;
+    }
+
+    //-----------------------------------------
+    public int size() {
+        return written + code.size();
+    }
+
+    //-----------------------------------------
+    public R4DInstr get(int index) {
+        return code.get(index - written);
+    }
+
+    //-----------------------------------------
+    // Number of TEXT records: echoes and other comments.
+    //
+    public int comments() {
+        return comments;
+    }
+
+    //-----------------------------------------
+    // Number of OP records.
+    //
+    public int instructions() {
+        int count = writtenOps;
+        for (R4DInstr i : code)
+            if (i.kind == R4DInstr.OP)
+                count++;
+        return count;
+    }
+
+    //-----------------------------------------
+    // Rearrange the adjacent ranges A = [a,b), B = [b,c) and
+    // C = [c,d) into the order C B A.
+    //
+    public void exchange(int a, int b, int c, int d) {
+        ArrayList<R4DInstr> moved = new ArrayList<R4DInstr>(d - a);
+        moved.addAll(code.subList(c, d));
+        moved.addAll(code.subList(b, c));
+        moved.addAll(code.subList(a, b));
+        for (int i = 0; i < moved.size(); i++)
+            code.set(a + i, moved.get(i));
+    }
+
+    //-----------------------------------------
+    // Read back an .a file.  Source lines echoed as comments
+    // are numbered from 1 and the code under each echo is
+    // attributed to it, as when the file was generated; a
+    // line echoed again carries its number.
+    //
+    public static R4DCode load(Scanner inFile) {
+        R4DCode code = new R4DCode();
+        int lineNumber = 0;
+        boolean header = true;
+        while (inFile.hasNextLine()) {
+            String s = inFile.nextLine();
+            String t = s.trim();
+            if (s.startsWith(";")) {
+                int again = echoedAgain(s);
+                if (header && s.startsWith("; from "))
+                    code.text(s);
+                else if (again > 0) {
+                    code.line = code.listed = again;
+                    code.text(s);
+                } else
+                    code.source(++lineNumber, s.length() > 2 ? s.substring(2) : "");
+                header = false;
+            } else if (t.isEmpty() || t.startsWith("!"))
+                code.text(s);
+            else if (Character.isWhitespace(s.charAt(0))) {
+                int k = 0;
+                while (k < t.length() && !Character.isWhitespace(t.charAt(k)))
+                    k++;
+                String opnd = t.substring(k).trim();
+                if (!opnd.isEmpty())
+                    code.instruction(t.substring(0, k), opnd);
+                else if (s.startsWith("          "))
+                    code.instruction(s.substring(10), null);  // keeps halt's indent
+                else
+                    code.instruction(t, null);
+            } else if (t.indexOf(':') > 0) {
+                int k = t.indexOf(':');
+                String rest = t.substring(k + 1).trim();
+                if (rest.startsWith("dw"))
+                    code.dw(t.substring(0, k).trim(), rest.substring(2).trim());
+                else
+                    code.label(t.substring(0, k).trim());
+            } else
+                code.text(s);
+        }
+        return code;
+    }
+
+    //-----------------------------------------
+    // Number of the line in a ";<line>: text" comment, or 0.
+    //
+    private static int echoedAgain(String s) {
+        int k = 1;
+        while (k < s.length() && Character.isDigit(s.charAt(k)))
+            k++;
+        if (k == 1 || k > 10 || !s.startsWith(": ", k))
+            return 0;
+        return Integer.parseInt(s.substring(1, k));
+    }
+
+    //-----------------------------------------
+    public void write(R4DEmitter outFile) throws IOException {
+        if (sink == outFile) {
+            drain();
+            return;
+        }
+        for (R4DInstr i : code)
+            outFile.record(i);
+    }
+}                                       // end of R4DCode
+
+//======================================================
+// Writes the text of an .a file as bytes.  Each record is
+// laid out straight into a buffer, padding included, rather
+// than through printf, and full buffers go to a FileChannel.
+// Once the output overflows its first buffer, a writer
+// thread takes over the channel so that formatting the next
+// buffer overlaps writing the last.  Text is encoded in the
+// default charset and lines end in the line separator, as
+// PrintWriter does, so the file is the same byte for byte.
+//
+class R4DEmitter {
+    static final int SIZE = 1 << 16;          // bytes per buffer
+    static final int BUFFERS = 3;
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes();
+    private static final byte[] SPACES = "          ".getBytes();
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private WritableByteChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+    private Thread writer;                        // null until needed
+    private ArrayBlockingQueue<ByteBuffer> full;  // for the writer
+    private ArrayBlockingQueue<ByteBuffer> free;  // back from it
+    private volatile IOException failure;
+
+    //-----------------------------------------
+    public R4DEmitter(String fileName) throws IOException {
+        channel = FileChannel.open(new File(fileName).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    //-----------------------------------------
+    public R4DEmitter(OutputStream out) {
+        channel = Channels.newChannel(out);
+    }
+
+    //-----------------------------------------
+    public void line(String s) throws IOException {
+        put(s);
+        put(NEWLINE);
+    }
+
+    //-----------------------------------------
+    // Same text as the printf formats the records had.
+    //
+    public void record(R4DInstr i) throws IOException {
+        switch (i.kind) {
+            case R4DInstr.TEXT:
+                line(i.op);
+                break;
+            case R4DInstr.LABEL:
+                pad(i.label, 4);                        // %-4s:
+                line(":");
+                break;
+            case R4DInstr.OP:
+                put(SPACES);
+                if (i.opnd == null) {
+                    pad(i.op, 4);                       // %-4s
+                    put(NEWLINE);
+                } else {
+                    pad(i.op, 4);                       // %-4s      %s
+                    put(SPACES, 6);
+                    line(i.opnd);
+                }
+                break;
+            case R4DInstr.DW:
+                pad(i.label + ":", 9);                  // %-9s dw        %s
+                put(" dw        ");
+                line(i.opnd);
+                break;
+        }
+    }
+
+    //-----------------------------------------
+    private void pad(String s, int width) throws IOException {
+        put(s);
+        if (s.length() < width)
+            put(SPACES, width - s.length());
+    }
+
+    //-----------------------------------------
+    // ASCII goes in a byte at a time; anything else is
+    // encoded as a whole.
+    //
+    private void put(String s) throws IOException {
+        int n = s.length();
+        if (n > buffer.remaining())
+            flushBuffer();
+        if (n <= buffer.remaining()) {
+            int start = buffer.position();
+            int k = 0;
+            while (k < n && s.charAt(k) < 0x80)
+                buffer.put((byte) s.charAt(k++));
+            if (k == n)
+                return;
+            buffer.position(start);
+        }
+        put(s.getBytes());
+    }
+
+    //-----------------------------------------
+    private void put(byte[] b) throws IOException {
+        put(b, b.length);
+    }
+
+    //-----------------------------------------
+    private void put(byte[] b, int length) throws IOException {
+        int k = 0;
+        while (k < length) {
+            if (!buffer.hasRemaining())
+                flushBuffer();
+            int m = Math.min(length - k, buffer.remaining());
+            buffer.put(b, k, m);
+            k += m;
+        }
+    }
+
+    //-----------------------------------------
+    // Hand the buffer to the writer thread, starting it the
+    // first time, and carry on with a free one.
+    //
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        try {
+            if (writer == null) {
+                full = new ArrayBlockingQueue<ByteBuffer>(BUFFERS);
+                free = new ArrayBlockingQueue<ByteBuffer>(BUFFERS);
+                for (int k = 1; k < BUFFERS; k++)
+                    free.add(ByteBuffer.allocate(SIZE));
+                writer = new Thread(this::drain, "R4DEmitter");
+                writer.setDaemon(true);
+                writer.start();
+            }
+            full.put(buffer);
+            buffer = free.take();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while writing");
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    //-----------------------------------------
+    // Writer thread: write each full buffer and return it.
+    // After a failure buffers are only returned, so the
+    // emitter never blocks; close reports the failure.
+    //
+    private void drain() {
+        try {
+            while (true) {
+                ByteBuffer b = full.take();
+                if (b == END)
+                    return;
+                try {
+                    if (failure == null)
+                        while (b.hasRemaining())
+                            channel.write(b);
+                } catch (IOException e) {
+                    failure = e;
+                }
+                b.clear();
+                free.put(b);
+            }
+        } catch (InterruptedException e) {
+            failure = new IOException("Interrupted while writing");
+        }
+    }
+
+    //-----------------------------------------
+    public void close() throws IOException {
+        buffer.flip();
+        try {
+            if (writer != null) {
+                full.put(buffer);
+                full.put(END);
+                writer.join();
+            } else
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+        } catch (InterruptedException e) {
+            failure = new IOException("Interrupted while writing");
+        } finally {
+            channel.close();
+        }
+        if (failure != null)
+            throw failure;
+    }
+}                                       // end of R4DEmitter
+
+//======================================================
+// Autotuning.  The program is compiled again under every
+// combination of the code generator's heuristic choices,
+// in parallel, and the variant that runs in the fewest
+// cycles on the simulator (input from <file>.in) is kept,
+// the smaller on a tie.  If the program cannot be run to
+// completion, every instruction counts once instead.  The
+// language has no functions and code generator state flows
+// from statement to statement, so variants are whole
+// programs.
+//
+class R4DTune {
+    // level, negate, stackTemps of each variant
+    static final int[][] VARIANTS = {
+            {1, 0, 0}, {1, 1, 0}, {2, 0, 0}, {2, 1, 0},
+            {1, 0, 1}, {1, 1, 1}, {2, 0, 1}, {2, 1, 1}
+    };
+
+    //-----------------------------------------
+    // The best of first, compiled with opts, and the variants.
+    //
+    public static R4DCode best(String name, R4DOptions opts, R4DCode first) {
+        String src, input;
+        try {
+            src = new String(Files.readAllBytes(new File(name + ".s").toPath()));
+            File in = new File(name + ".in");
+            input = in.exists()
+                    ? new String(Files.readAllBytes(in.toPath())) : null;
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+
+        ArrayList<R4DOptions> variants = new ArrayList<R4DOptions>();
+        variants.add(opts);
+        for (int[] v : VARIANTS) {
+            R4DOptions o = opts.copy();
+            o.optLevel = v[0];
+            o.negate = v[1];
+            o.stackTemps = v[2] != 0;
+            o.autotune = false;
+            variants.add(o);
+        }
+
+        ArrayList<Callable<R4DCode>> tasks = new ArrayList<Callable<R4DCode>>();
+        for (int i = 1; i < variants.size(); i++) {
+            R4DOptions o = variants.get(i);
+            tasks.add(() -> {
+                R4DCode code = new R4DCode();
+                Compiler.compile(new Scanner(src), code, o);
+                return code;
+            });
+        }
+        ArrayList<R4DCode> codes = new ArrayList<R4DCode>();
+        codes.add(first);
+        try {
+            for (Future<R4DCode> f : ForkJoinPool.commonPool().invokeAll(tasks))
+                codes.add(f.get());
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+
+        // run every variant; fall back to the static count for
+        // all of them if any cannot finish
+        long[][] cost = new long[codes.size()][];
+        boolean ran = true;
+        for (int i = 0; i < codes.size(); i++) {
+            R4DSim sim = new R4DSim(codes.get(i),
+                    input != null ? new Scanner(input) : null);
+            try {
+                sim.run(R4DSim.MAX_STEPS);
+                cost[i] = new long[]{sim.getCycles(), sim.getSize()};
+            } catch (RuntimeException e) {
+                ran = false;
+            }
+        }
+        if (!ran)
+            for (int i = 0; i < codes.size(); i++) {
+                R4DSim sim = new R4DSim(codes.get(i), null);
+                cost[i] = new long[]{sim.getStaticCycles(), sim.getSize()};
+            }
+
+        int best = 0;
+        for (int i = 1; i < codes.size(); i++)
+            if (cost[i][0] < cost[best][0]
+                    || cost[i][0] == cost[best][0] && cost[i][1] < cost[best][1])
+                best = i;
+
+        R4DOptions o = variants.get(best);
+        System.out.printf("Autotune: -O%d %s%s: %d cycles%s, %d words%n",
+                o.optLevel, o.negate > 0 || o.negate < 0 && o.optLevel > 1
+                        ? "-negate" : "-no-negate",
+                o.stackTemps ? " -stacktemps" : "", cost[best][0],
+                ran ? "" : " (static)", cost[best][1]);
+        return codes.get(best);
+    }
+}                                          // end of R4DTune
+
+//======================================================
+// Whole-program partial evaluation.  The compiled program
+// is run on the simulator, without input, for at most a
+// given number of steps.  If it halts, the residual program
+// just prints its output.  Otherwise it stopped in some
+// top-level statement, for want of input, steps, or because
+// it traps; the residual prints the output produced before
+// that statement, restores ac, and continues with the
+// statement's code, every dw holding its value from then.
+//
+class R4DPartialEval {
+    //-----------------------------------------
+    public static R4DCode residual(R4DCode code, long budget) {
+        R4DSim sim = new R4DSim(code, null);
+        sim.snapshotAt(code.getBoundaries());
+        boolean halted;
+        try {
+            sim.run(budget);
+            halted = true;
+        } catch (RuntimeException e) {
+            halted = false;
+        }
+
+        R4DCode out = new R4DCode();
+        for (int i = 0; i < code.size() && code.get(i).kind == R4DInstr.TEXT
+                && i < 2; i++)
+            out.add(code.get(i));                   // header
+
+        if (halted) {
+            String text = sim.getOutput();
+            if (!text.isEmpty()) {
+                out.instruction("ldc", "@L0");
+                out.instruction("sout", null);
+            }
+            out.instruction("            halt", null);
+            if (!text.isEmpty())
+                out.dw("@L0", "\"" + escape(text) + "\"");
+            return out;
+        }
+
+        int from = sim.getSnapshotRecord();
+        if (from < 0 || sim.getSnapshotOutput().isEmpty()
+                && from == code.getBoundaries().get(0))
+            return code;                 // nothing ran ahead of time
+
+        // keep the source lines echoed just ahead of the statement
+        while (from > out.size() && code.get(from - 1).kind == R4DInstr.TEXT)
+            from--;
+
+        // the resumed code may expect a value in ac
+        ArrayList<R4DInstr> data = new ArrayList<R4DInstr>();
+        String text = sim.getSnapshotOutput();
+        int ac = sim.getSnapshotAc();
+        if (!text.isEmpty()) {
+            String label = "@L" + nextLabel(code);
+            out.instruction("ldc", label);
+            out.instruction("sout", null);
+            data.add(dw(label, "\"" + escape(text) + "\""));
+        }
+        if (ac >= 0 && ac < 4095)
+            out.instruction("ldc", "" + ac);
+        else {
+            String label = ac >= 0 ? "@" + ac : "@_" + (-(long) ac);
+            out.instruction("ld", label);
+            boolean defined = false;
+            for (int i = 0; i < code.size(); i++)
+                if (code.get(i).kind == R4DInstr.DW
+                        && code.get(i).label.equals(label))
+                    defined = true;
+            if (!defined)
+                data.add(dw(label, "" + ac));
+        }
+
+        for (int i = from; i < code.size(); i++) {
+            R4DInstr r = code.get(i);
+            if (r.kind != R4DInstr.DW) {
+                out.add(r);
+                continue;
+            }
+            Integer value = sim.getSnapshotWord(r.label);
+            out.add(value == null ? r : dw(r.label, "" + value));
+        }
+        for (R4DInstr r : data)
+            out.add(r);
+        return out;
+    }
+
+    //-----------------------------------------
+    // One more than the highest @L number in use.
+    //
+    private static int nextLabel(R4DCode code) {
+        int next = 0;
+        for (int i = 0; i < code.size(); i++) {
+            R4DInstr r = code.get(i);
+            String l = r.kind == R4DInstr.OP ? r.opnd : r.label;
+            if (l != null && l.startsWith("@L"))
+                try {
+                    next = Math.max(next, Integer.parseInt(l.substring(2)) + 1);
+                } catch (NumberFormatException e) {
+                    // not a generated label
+                }
+        }
+        return next;
+    }
+
+    //-----------------------------------------
+    private static R4DInstr dw(String label, String value) {
+        R4DInstr i = new R4DInstr();
+        i.kind = R4DInstr.DW;
+        i.label = label;
+        i.opnd = value;
+        return i;
+    }
+
+    //-----------------------------------------
+    // Inverse of R4DSim.unescape, for a string dw.
+    //
+    static String escape(String s) {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\n')
+                b.append("\\n");
+            else if (c == '\t')
+                b.append("\\t");
+            else if (c == '\r')
+                b.append("\\r");
+            else if (c == '\0')
+                b.append("\\0");
+            else if (c == '\\' || c == '\"')
+                b.append('\\').append(c);
+            else
+                b.append(c);
+        }
+        return b.toString();
+    }
+}                                  // end of R4DPartialEval
+
+//======================================================
+// Block-local cleanup at -O2.  Within a basic block it
+// follows which words hold what is in ac, and which ldc
+// operand, and drops
+//
+//   a load of such a word          st x; ld x
+//   a store to such a word         ld x; st x
+//   a second ldc of the same thing ldc '\n'; aout; ldc '\n'
+//   add @0, sub @0, mult @1, div @1
+//
+// Blocks do not affect one another, so slices of the code
+// that start at labels are cleaned up in parallel on the
+// fork/join pool.  Each slice only marks its own records,
+// and the marks are applied in order afterwards, so the
+// result is the same as a serial run.
+//
+class R4DPeephole {
+    static final int CHUNK = 4096;   // minimum records per slice
+
+    //-----------------------------------------
+    public static void run(R4DCode code) {
+        run(code, CHUNK);
+    }
+
+    //-----------------------------------------
+    static void run(R4DCode code, int chunk) {
+        int n = code.size();
+        ArrayList<Integer> starts = new ArrayList<Integer>();
+        starts.add(0);
+        for (int i = chunk; i < n; i++)
+            if (code.get(i).kind == R4DInstr.LABEL) {
+                starts.add(i);
+                i += chunk - 1;
+            }
+        starts.add(n);
+
+        boolean[] dead = new boolean[n];
+        ForkJoinPool.commonPool().invoke(
+                new R4DSplit(0, starts.size() - 1, k ->
+                        slice(code, starts.get(k), starts.get(k + 1), dead)));
+
+        for (int i = 0; i < n; i++)
+            if (dead[i]) {
+                code.remove(dead);
+                return;
+            }
+    }
+
+    //-----------------------------------------
+    private static void slice(R4DCode code, int lo, int hi,
+                              boolean[] dead) {
+        HashSet<String> same = new HashSet<String>();  // words equal to ac
+        String constant = null;                        // ldc that made ac
+        for (int i = lo; i < hi; i++) {
+            R4DInstr r = code.get(i);
+            if (r.kind == R4DInstr.LABEL) {
+                same.clear();
+                constant = null;
+            }
+            if (r.kind != R4DInstr.OP)
+                continue;
+            String op = r.op.trim().toLowerCase();
+            String x = r.opnd;
+            if ((op.equals("ld") || op.equals("st")) && same.contains(x)
+                    || op.equals("ldc") && x.equals(constant)
+                    || (op.equals("add") || op.equals("sub")) && "@0".equals(x)
+                    || (op.equals("mult") || op.equals("div")) && "@1".equals(x)) {
+                dead[i] = true;
+                continue;
+            }
+            switch (op) {
+                case "st":
+                    same.add(x);
+                    break;
+                case "ld":
+                    same.clear();
+                    same.add(x);
+                    constant = null;
+                    break;
+                case "ldc":
+                    same.clear();
+                    constant = x;
+                    break;
+                case "dout":
+                case "aout":
+                case "sout":
+                case "push":
+                case "dloc":
+                case "str":
+                    break;        // ac and the words stay
+                default:          // ac changes, or the block ends
+                    same.clear();
+                    constant = null;
+            }
+        }
+    }
+}                                     // end of R4DPeephole
+
+//======================================================
+// Liveness of data words over the whole program, for -O2.
+// Every instruction up to halt is a node; jumps and the
+// fall-through are its edges.  A word is live where some
+// path reads it (ld, add, sub, mult, div) before a st to
+// it, and a st to a word that is not live after it is
+// removed; it does not change ac, and a load left with no
+// use for its ac, before another load or halt, goes too.
+// Nothing is live at halt unless the program is a unit to
+// be linked, where a later unit may read the variables.
+//
+// Temps, and variables if asked, then share data words: two
+// interfere if one is stored while the other is live, and
+// each takes the first word, in order of appearance, none
+// of whose sharers it interferes with.  A word live on entry
+// (read before any store) or at halt keeps its own.
+//
+class R4DLiveness {
+    //-----------------------------------------
+    // Remove the dead stores in code, assign temps (and with
+    // variables set, variables) to shared words, and return
+    // the names the remaining instructions still refer to.
+    //
+    public static HashSet<String> run(R4DCode code, boolean unit,
+                                      boolean variables) {
+        // instructions, and the instruction each label names
+        ArrayList<Integer> ops = new ArrayList<Integer>();
+        HashMap<String, Integer> labels = new HashMap<String, Integer>();
+        for (int i = 0; i < code.size(); i++) {
+            R4DInstr r = code.get(i);
+            if (r.kind == R4DInstr.LABEL)
+                labels.put(r.label, ops.size());
+            else if (r.kind == R4DInstr.OP)
+                ops.add(i);
+        }
+
+        int n = ops.size();
+        HashMap<String, Integer> words = new HashMap<String, Integer>();
+        String[] op = new String[n];
+        int[] word = new int[n];         // operand's word, or -1
+        int[] target = new int[n];       // jump target, or -1
+        for (int e = 0; e < n; e++) {
+            R4DInstr r = code.get(ops.get(e));
+            op[e] = r.op.trim().toLowerCase();
+            word[e] = target[e] = -1;
+            if (op[e].equals("ja") || op[e].equals("jz") || op[e].equals("jnz")
+                    || op[e].equals("jn"))
+                target[e] = labels.get(r.opnd);
+            else if (isRead(op[e]) || op[e].equals("st")) {
+                Integer w = words.get(r.opnd);
+                if (w == null)
+                    words.put(r.opnd, w = words.size());
+                word[e] = w;
+            }
+        }
+        BitSet exit = new BitSet();
+        if (unit)
+            for (String name : words.keySet())
+                if (!name.startsWith("@"))
+                    exit.set(words.get(name));
+
+        // live[e]: words live on entry to e, to a fixed point
+        BitSet[] live = new BitSet[n];
+        for (int e = 0; e < n; e++)
+            live[e] = new BitSet();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int e = n - 1; e >= 0; e--) {
+                BitSet in = liveOut(e, op, target, live, exit);
+                if (op[e].equals("st"))
+                    in.clear(word[e]);
+                else if (word[e] >= 0)
+                    in.set(word[e]);
+                if (!in.equals(live[e])) {
+                    live[e] = in;
+                    changed = true;
+                }
+            }
+        }
+
+        // words that may share, and what each interferes with
+        String[] name = new String[words.size()];
+        for (String w : words.keySet())
+            name[words.get(w)] = w;
+        BitSet shared = new BitSet();
+        for (int w = 0; w < name.length; w++)
+            if (name[w].startsWith("@t") || variables && !name[w].startsWith("@"))
+                shared.set(w);
+        if (n > 0)
+            shared.andNot(live[0]);
+        shared.andNot(exit);
+
+        boolean[] dead = new boolean[code.size()];
+        BitSet[] conflicts = new BitSet[name.length];
+        for (int w = shared.nextSetBit(0); w >= 0; w = shared.nextSetBit(w + 1))
+            conflicts[w] = new BitSet();
+        for (int e = 0; e < n; e++) {
+            if (!op[e].equals("st"))
+                continue;
+            BitSet out = liveOut(e, op, target, live, exit);
+            if (!out.get(word[e]))
+                dead[ops.get(e)] = true;
+            else if (shared.get(word[e])) {
+                out.and(shared);
+                out.clear(word[e]);
+                conflicts[word[e]].or(out);
+                for (int v = out.nextSetBit(0); v >= 0; v = out.nextSetBit(v + 1))
+                    conflicts[v].set(word[e]);
+            }
+        }
+
+        // words are numbered in order of first appearance
+        String[] slot = name.clone();
+        ArrayList<Integer> firsts = new ArrayList<Integer>();
+        ArrayList<BitSet> sharers = new ArrayList<BitSet>();
+        for (int w = shared.nextSetBit(0); w >= 0; w = shared.nextSetBit(w + 1)) {
+            int c = 0;
+            while (c < sharers.size() && conflicts[w].intersects(sharers.get(c)))
+                c++;
+            if (c == sharers.size()) {
+                firsts.add(w);
+                sharers.add(new BitSet());
+            }
+            sharers.get(c).set(w);
+            slot[w] = name[firsts.get(c)];
+        }
+
+        // a load whose ac the next instruction replaces unread,
+        // as once a dead store is gone, goes too
+        boolean replaced = false;        // by the next one kept
+        for (int e = n - 1; e >= 0; e--) {
+            if (dead[ops.get(e)])
+                continue;
+            boolean load = op[e].equals("ld") || op[e].equals("ldc");
+            if (load && replaced)
+                dead[ops.get(e)] = true;
+            else
+                replaced = load || op[e].equals("din") || op[e].equals("halt");
+        }
+
+        HashSet<String> used = new HashSet<String>();
+        for (int e = 0; e < n; e++) {
+            R4DInstr r = code.get(ops.get(e));
+            if (dead[ops.get(e)])
+                continue;
+            if (word[e] >= 0)
+                r.opnd = slot[word[e]];
+            if (r.opnd != null)
+                used.add(r.opnd);
+        }
+        code.remove(dead);
+        return used;
+    }
+
+    //-----------------------------------------
+    private static BitSet liveOut(int e, String[] op, int[] target,
+                                  BitSet[] live, BitSet exit) {
+        BitSet out = new BitSet();
+        if (op[e].equals("halt"))
+            out.or(exit);
+        else {
+            if (!op[e].equals("ja") && e + 1 < op.length)
+                out.or(live[e + 1]);
+            if (target[e] >= 0 && target[e] < op.length)
+                out.or(live[target[e]]);
+        }
+        return out;
+    }
+
+    //-----------------------------------------
+    private static boolean isRead(String op) {
+        return op.equals("ld") || op.equals("add") || op.equals("sub")
+                || op.equals("mult") || op.equals("div");
+    }
+}                                     // end of R4DLiveness
+
+//======================================================
+// Outlining for -Os.  A sequence of instructions that
+// recurs often enough becomes a subroutine, placed after
+// halt, and each occurrence becomes a call to it.  Every
+// instruction is numbered by its text, and sequences of 2
+// to MAX instructions are counted by a rolling hash, which
+// finds what a suffix tree would for sequences this short;
+// a sequence is only extended if it already repeats.  Each
+// round outlines the candidates, most words saved first,
+// at the occurrences still free, and rounds repeat while
+// any is taken, so a later sequence may contain calls made
+// earlier.  A sequence has no label, jump, halt, probe or
+// stack-relative operand: it is entered only at its top and
+// does exactly what the inline code did, as call and ret
+// change neither ac nor memory.  With a profile, hot lines
+// are left inline.
+//
+class R4DOutline {
+    static final int MAX = 16;    // longest sequence tried
+
+    //-----------------------------------------
+    // A sequence of a given length and where it starts.
+    //
+    private static class Candidate {
+        int length;
+        int count;                // occurrences that do not overlap
+        int end = -1;             // end of the last one counted
+        int all;                  // every occurrence
+        ArrayList<Integer> starts = new ArrayList<Integer>();
+    }
+
+    //-----------------------------------------
+    public static void run(R4DCode code, R4DProfile profile) {
+        ArrayList<R4DInstr> recs = new ArrayList<R4DInstr>();
+        for (int i = 0; i < code.size(); i++)
+            recs.add(code.get(i));
+        ArrayList<R4DInstr> subs = new ArrayList<R4DInstr>();
+        HashMap<String, Integer> ids = new HashMap<String, Integer>();
+        int routines = 0;
+
+        while (true) {
+            // the runs, end to end; end[p] is where the run
+            // holding position p ends
+            ArrayList<int[]> runs = runs(recs, profile);
+            int size = 0;
+            for (int[] run : runs)
+                size += run.length;
+            int[] at = new int[size];      // record at each position
+            int[] id = new int[size];
+            int[] end = new int[size];
+            int p = 0;
+            for (int[] run : runs)
+                for (int k = 0; k < run.length; k++, p++) {
+                    R4DInstr r = recs.get(run[k]);
+                    String text = r.op.trim().toLowerCase() + " " + r.opnd;
+                    Integer i = ids.get(text);
+                    if (i == null)
+                        ids.put(text, i = ids.size());
+                    at[p] = run[k];
+                    id[p] = i;
+                    end[p] = p - k + run.length;
+                }
+
+            // grow the hash of the sequence at each position
+            // that still repeats by one instruction at a time
+            ArrayList<Candidate> found = new ArrayList<Candidate>();
+            long[] hash = new long[size];
+            boolean[] alive = new boolean[size];
+            for (p = 0; p < size; p++) {
+                hash[p] = id[p];
+                alive[p] = true;
+            }
+            for (int length = 2; length <= MAX; length++) {
+                HashMap<Long, Candidate> seen = new HashMap<Long, Candidate>();
+                for (p = 0; p < size; p++) {
+                    if (!alive[p] || p + length > end[p]) {
+                        alive[p] = false;
+                        continue;
+                    }
+                    hash[p] = hash[p] * 0x9E3779B97F4A7C15L + id[p + length - 1] + 1;
+                    Candidate c = seen.get(hash[p]);
+                    if (c == null) {
+                        seen.put(hash[p], c = new Candidate());
+                        c.length = length;
+                    }
+                    c.all++;
+                    if (p >= c.end) {
+                        c.count++;
+                        c.end = p + length;
+                        c.starts.add(p);
+                    }
+                }
+                for (p = 0; p < size; p++)
+                    if (alive[p] && seen.get(hash[p]).all < 2)
+                        alive[p] = false;
+                for (Candidate c : seen.values())
+                    if (saving(c.count, c.length) > 0)
+                        found.add(c);
+            }
+            found.sort((x, y) -> {
+                int d = saving(y.count, y.length) - saving(x.count, x.length);
+                if (d == 0)
+                    d = Integer.compare(x.starts.get(0), y.starts.get(0));
+                return d != 0 ? d : y.length - x.length;
+            });
+
+            // take each candidate where it is still free and
+            // really the same instructions
+            boolean[] taken = new boolean[size];
+            int before = routines;
+            for (Candidate c : found) {
+                ArrayList<Integer> free = new ArrayList<Integer>();
+                for (int s : c.starts) {
+                    boolean ok = true;
+                    for (int k = 0; k < c.length && ok; k++)
+                        ok = !taken[s + k] && (free.isEmpty()
+                                || id[s + k] == id[free.get(0) + k]);
+                    if (ok)
+                        free.add(s);
+                }
+                if (saving(free.size(), c.length) <= 0)
+                    continue;
+
+                String name = "@F" + routines++;
+                R4DInstr first = recs.get(at[free.get(0)]);
+                subs.add(record(R4DInstr.LABEL, name, null, first));
+                for (int k = 0; k < c.length; k++)
+                    subs.add(recs.get(at[free.get(0) + k]));
+                subs.add(record(R4DInstr.OP, null, "ret", first));
+                for (int s : free) {
+                    R4DInstr call = record(R4DInstr.OP, null, "call", recs.get(at[s]));
+                    call.opnd = name;
+                    recs.set(at[s], call);
+                    for (int k = 0; k < c.length; k++) {
+                        taken[s + k] = true;
+                        if (k > 0)
+                            recs.set(at[s + k], null);
+                    }
+                }
+            }
+            if (routines == before)
+                break;
+        }
+        if (routines == 0)
+            return;
+
+        // subroutines go right after halt; a boundary inside
+        // an occurrence moves to the code that follows it
+        ArrayList<R4DInstr> out = new ArrayList<R4DInstr>();
+        int[] index = new int[recs.size() + 1];
+        for (int i = 0; i < recs.size(); i++) {
+            index[i] = out.size();
+            R4DInstr r = recs.get(i);
+            if (r == null)
+                continue;
+            out.add(r);
+            if (r.kind == R4DInstr.OP && r.op.trim().equals("halt"))
+                out.addAll(subs);
+        }
+        index[recs.size()] = out.size();
+        ArrayList<Integer> boundaries = new ArrayList<Integer>();
+        for (int b : code.getBoundaries())
+            boundaries.add(index[b]);
+        code.replace(out, boundaries);
+    }
+
+    //-----------------------------------------
+    // Record indices of each run of instructions that may be
+    // outlined.  Comments and removed records do not end a
+    // run; anything else that cannot be outlined does.
+    //
+    private static ArrayList<int[]> runs(ArrayList<R4DInstr> recs,
+                                         R4DProfile profile) {
+        ArrayList<int[]> runs = new ArrayList<int[]>();
+        ArrayList<Integer> run = new ArrayList<Integer>();
+        for (int i = 0; i <= recs.size(); i++) {
+            R4DInstr r = i < recs.size() ? recs.get(i) : null;
+            if (r != null && r.kind == R4DInstr.TEXT
+                    || r == null && i < recs.size())
+                continue;
+            if (r != null && outlinable(r)
+                    && (profile == null || !profile.isHot(r.line))) {
+                run.add(i);
+                continue;
+            }
+            if (run.size() >= 2) {
+                int[] a = new int[run.size()];
+                for (int k = 0; k < a.length; k++)
+                    a[k] = run.get(k);
+                runs.add(a);
+            }
+            run.clear();
+        }
+        return runs;
+    }
+
+    //-----------------------------------------
+    private static boolean outlinable(R4DInstr r) {
+        if (r.kind != R4DInstr.OP)
+            return false;
+        String op = r.op.trim().toLowerCase();
+        return !op.equals("ja") && !op.equals("jz") && !op.equals("jnz")
+                && !op.equals("jn") && !op.equals("halt") && !op.equals("ret")
+                && !R4DSim.isStackOp(op);
+    }
+
+    //-----------------------------------------
+    // n copies of length words become n calls and a body of
+    // length words plus ret.
+    //
+    private static int saving(int n, int length) {
+        return n * length - n - (length + 1);
+    }
+
+    //-----------------------------------------
+    private static R4DInstr record(int kind, String label, String op,
+                                   R4DInstr at) {
+        R4DInstr i = new R4DInstr();
+        i.kind = kind;
+        i.label = label;
+        i.op = op;
+        i.line = at.line;
+        i.column = at.column;
+        return i;
+    }
+}                                      // end of R4DOutline
+
+//======================================================
+// Runs generated code in-process.  Code words come first,
+// then the dw section; an integer dw takes one word and a
+// string dw one word per two characters plus a terminator.
+// Every record is counted so callers can build profiles.
+//
+class R4DSim {
+    static final long MAX_STEPS = 100000000L;
+
+    // opcodes
+    static final int PROBE = 0;
+    static final int HALT = 1;
+    static final int LD = 2;
+    static final int ST = 3;
+    static final int LDC = 4;
+    static final int ADD = 5;
+    static final int SUB = 6;
+    static final int MULT = 7;
+    static final int DIV = 8;
+    static final int JA = 9;
+    static final int JZ = 10;
+    static final int JNZ = 11;
+    static final int DOUT = 12;
+    static final int AOUT = 13;
+    static final int SOUT = 14;
+    static final int DIN = 15;
+    static final int PUSH = 16;
+    static final int DLOC = 17;
+    static final int LDR = 18;     // ldr..divr: operand is an offset
+    static final int STR = 19;     // from the top of the stack
+    static final int ADDR = 20;
+    static final int SUBR = 21;
+    static final int MULTR = 22;
+    static final int DIVR = 23;
+    static final int CALL = 24;    // push the return entry, jump
+    static final int RET = 25;
+    static final int JN = 26;      // jump if ac is negative
+
+    static final int STACK = 4096; // words of stack
+
+    // mnemonic for each opcode
+    static final String[] opImage =
+            {
+                    "probe", "halt", "ld", "st", "ldc", "add", "sub",
+                    "mult", "div", "ja", "jz", "jnz", "dout", "aout",
+                    "sout", "din", "push", "dloc", "ldr", "str", "addr",
+                    "subr", "multr", "divr", "call", "ret", "jn"
+            };
+
+    // cycles per opcode: one to fetch, one per memory
+    // operand, extra for mult/div, and a trap for I/O
+    static final int[] CYCLES =
+            {
+                    0, 1, 2, 2, 1, 2, 2,
+                    4, 6, 1, 1, 1, 10, 10,
+                    10, 10, 2, 1, 2, 2, 2,
+                    2, 4, 6, 2, 2, 1
+            };
+
+    private R4DCode code;
+    private Scanner in;
+    private int n;               // number of executable entries
+    private int[] opcode;
+    private int[] operand;       // data slot, immediate or entry
+    private int[] record;        // code record of each entry
+    private int[] entry;         // entry of each code record, or -1
+    private long[] count;        // executions of each entry
+    private long[] taken;        // taken branches of each entry
+    private int[] mem;           // data words
+    private int[] stack = new int[STACK];
+    private int sp = STACK;      // top of stack; it grows down
+    private int codeSize;
+    private int dataSize;
+    private HashMap<Integer, String> strings;
+    private StringBuilder output;
+    private long instructions;
+    private long cycles;
+    private HashMap<String, Integer> slots;    // data word of each int dw
+    private int[] snapAt;          // record to report per entry, or -1
+    private int snapRecord = -1;   // record of the latest snapshot
+    private int[] snapMem;
+    private int snapAc;
+    private int snapOutput;        // length of the output so far
+
+    //-----------------------------------------
+    public R4DSim(R4DCode code, Scanner in) {
+        this.code = code;
+        this.in = in;
+        output = new StringBuilder();
+        load();
+    }
+
+    //-----------------------------------------
+    // Assign addresses, then resolve every operand.
+    //
+    private void load() {
+        int size = code.size();
+        HashMap<String, Integer> labels = new HashMap<String, Integer>();
+        slots = new HashMap<String, Integer>();
+        HashMap<String, Integer> addresses = new HashMap<String, Integer>();
+        ArrayList<String> values = new ArrayList<String>();
+        entry = new int[size];
+
+        n = 0;
+        for (int i = 0; i < size; i++) {
+            R4DInstr r = code.get(i);
+            entry[i] = -1;
+            if (r.kind == R4DInstr.LABEL)
+                labels.put(r.label, n);
+            else if (r.kind == R4DInstr.OP || r.kind == R4DInstr.PROBE) {
+                entry[i] = n++;
+                if (r.kind == R4DInstr.OP)
+                    codeSize++;
+            }
+        }
+
+        strings = new HashMap<Integer, String>();
+        for (int i = 0; i < size; i++) {
+            R4DInstr r = code.get(i);
+            if (r.kind != R4DInstr.DW)
+                continue;
+            addresses.put(r.label, codeSize + dataSize);
+            if (r.opnd.startsWith("\"")) {
+                String s = unescape(r.opnd.substring(1, r.opnd.length() - 1));
+                strings.put(codeSize + dataSize, s);
+                dataSize += s.length() / 2 + 1;
+            } else {
+                slots.put(r.label, values.size());
+                values.add(r.opnd);
+                dataSize++;
+            }
+        }
+        mem = new int[values.size()];
+        for (int i = 0; i < mem.length; i++)
+            mem[i] = Integer.parseInt(values.get(i));
+
+        opcode = new int[n];
+        operand = new int[n];
+        record = new int[n];
+        count = new long[n];
+        taken = new long[n];
+        for (int i = 0; i < size; i++) {
+            if (entry[i] < 0)
+                continue;
+            R4DInstr r = code.get(i);
+            int e = entry[i];
+            record[e] = i;
+            if (r.kind == R4DInstr.PROBE) {
+                opcode[e] = PROBE;
+                continue;
+            }
+            String op = r.op.trim().toLowerCase();
+            int k = 0;
+            while (k < opImage.length && !opImage[k].equals(op))
+                k++;
+            if (k == opImage.length || k == PROBE)
+                throw new RuntimeException("Unknown instruction " + r.op);
+            opcode[e] = k;
+            switch (k) {
+                case LD:
+                case ST:
+                case ADD:
+                case SUB:
+                case MULT:
+                case DIV:
+                    operand[e] = lookup(slots, r.opnd);
+                    break;
+                case JA:
+                case JZ:
+                case JNZ:
+                case JN:
+                case CALL:
+                    operand[e] = lookup(labels, r.opnd);
+                    break;
+                case DLOC:
+                case LDR:
+                case STR:
+                case ADDR:
+                case SUBR:
+                case MULTR:
+                case DIVR:
+                    operand[e] = Integer.parseInt(r.opnd);
+                    break;
+                case LDC:
+                    if (r.opnd.startsWith("'"))
+                        operand[e] = unescape(r.opnd.substring(1,
+                                r.opnd.length() - 1)).charAt(0);
+                    else if (addresses.containsKey(r.opnd))
+                        operand[e] = addresses.get(r.opnd);
+                    else
+                        operand[e] = Integer.parseInt(r.opnd);
+                    break;
+            }
+        }
+    }
+
+    //-----------------------------------------
+    private static int lookup(HashMap<String, Integer> map, String name) {
+        Integer i = map.get(name);
+        if (i == null)
+            throw new RuntimeException("Undefined symbol " + name);
+        return i;
+    }
+
+    //-----------------------------------------
+    // Translate the escapes the token manager leaves in
+    // string and character literals.
+    //
+    static String unescape(String s) {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                c = s.charAt(++i);
+                if (c == 'n')
+                    c = '\n';
+                else if (c == 't')
+                    c = '\t';
+                else if (c == 'r')
+                    c = '\r';
+                else if (c == '0')
+                    c = '\0';
+            }
+            b.append(c);
+        }
+        return b.toString();
+    }
+
+    //-----------------------------------------
+    // Execute from the first instruction until halt.  Throws
+    // if more than maxSteps instructions would execute.
+    //
+    public void run(long maxSteps) {
+        int pc = 0;
+        int ac = 0;
+        while (true) {
+            if (pc >= n)
+                throw new RuntimeException("Ran past end of code");
+            int op = opcode[pc];
+            int opnd = operand[pc];
+            count[pc]++;
+            if (snapAt != null && snapAt[pc] >= 0) {
+                snapRecord = snapAt[pc];
+                snapMem = mem.clone();
+                snapAc = ac;
+                snapOutput = output.length();
+            }
+            if (op != PROBE) {
+                if (instructions++ >= maxSteps)
+                    throw new RuntimeException(
+                            "Exceeded " + maxSteps + " steps");
+                cycles += CYCLES[op];
+            }
+            pc++;
+            switch (op) {
+                case HALT:
+                    return;
+                case LD:
+                    ac = mem[opnd];
+                    break;
+                case ST:
+                    mem[opnd] = ac;
+                    break;
+                case LDC:
+                    ac = opnd;
+                    break;
+                case ADD:
+                    ac += mem[opnd];
+                    break;
+                case SUB:
+                    ac -= mem[opnd];
+                    break;
+                case MULT:
+                    ac *= mem[opnd];
+                    break;
+                case DIV:
+                    if (mem[opnd] == 0)
+                        throw new RuntimeException("Division by zero");
+                    ac /= mem[opnd];
+                    break;
+                case JA:
+                    taken[pc - 1]++;
+                    pc = opnd;
+                    break;
+                case JZ:
+                    if (ac == 0) {
+                        taken[pc - 1]++;
+                        pc = opnd;
+                    }
+                    break;
+                case JNZ:
+                    if (ac != 0) {
+                        taken[pc - 1]++;
+                        pc = opnd;
+                    }
+                    break;
+                case JN:
+                    if (ac < 0) {
+                        taken[pc - 1]++;
+                        pc = opnd;
+                    }
+                    break;
+                case DOUT:
+                    output.append(ac);
+                    break;
+                case AOUT:
+                    output.append((char) ac);
+                    break;
+                case SOUT:
+                    output.append(strings.get(ac));
+                    break;
+                case DIN:
+                    if (in == null || !in.hasNextInt())
+                        throw new RuntimeException("No input for din");
+                    ac = in.nextInt();
+                    break;
+                case PUSH:
+                    if (sp == 0)
+                        throw new RuntimeException("Stack overflow");
+                    stack[--sp] = ac;
+                    break;
+                case DLOC:
+                    sp += opnd;
+                    break;
+                case LDR:
+                    ac = stack[slot(opnd)];
+                    break;
+                case STR:
+                    stack[slot(opnd)] = ac;
+                    break;
+                case ADDR:
+                    ac += stack[slot(opnd)];
+                    break;
+                case SUBR:
+                    ac -= stack[slot(opnd)];
+                    break;
+                case MULTR:
+                    ac *= stack[slot(opnd)];
+                    break;
+                case DIVR:
+                    if (stack[slot(opnd)] == 0)
+                        throw new RuntimeException("Division by zero");
+                    ac /= stack[slot(opnd)];
+                    break;
+                case CALL:
+                    if (sp == 0)
+                        throw new RuntimeException("Stack overflow");
+                    stack[--sp] = pc;
+                    pc = opnd;
+                    break;
+                case RET:
+                    pc = stack[slot(0)];
+                    sp++;
+                    break;
+            }
+        }
+    }
+
+    //-----------------------------------------
+    // Times the record at index executed (probes included).
+    //
+    public long getCount(int index) {
+        return entry[index] < 0 ? 0 : count[entry[index]];
+    }
+
+    //-----------------------------------------
+    // Cycles spent in the record at index.
+    //
+    public long getCost(int index) {
+        return entry[index] < 0 ? 0 :
+                count[entry[index]] * CYCLES[opcode[entry[index]]];
+    }
+
+    //-----------------------------------------
+    public long getTaken(int index) {
+        return entry[index] < 0 ? 0 : taken[entry[index]];
+    }
+
+    //-----------------------------------------
+    // True for the instructions -stacktemps generates.
+    //
+    static boolean isStackOp(String op) {
+        for (int k = PUSH; k <= DIVR; k++)
+            if (opImage[k].equals(op))
+                return true;
+        return false;
+    }
+
+    //-----------------------------------------
+    // Stack index of a relative operand.
+    //
+    private int slot(int offset) {
+        if (offset < 0 || sp + offset >= STACK)
+            throw new RuntimeException("Stack underflow");
+        return sp + offset;
+    }
+
+    //-----------------------------------------
+    // Record the state whenever execution reaches the first
+    // instruction at or after one of the given records.
+    //
+    public void snapshotAt(ArrayList<Integer> records) {
+        snapAt = new int[n];
+        Arrays.fill(snapAt, -1);
+        for (int i = records.size() - 1; i >= 0; i--) {
+            int r = records.get(i);
+            while (r < entry.length && entry[r] < 0)
+                r++;
+            if (r < entry.length)
+                snapAt[entry[r]] = records.get(i);
+        }
+    }
+
+    //-----------------------------------------
+    // Record given to snapshotAt for the latest snapshot, or
+    // -1 if none was taken.
+    //
+    public int getSnapshotRecord() {
+        return snapRecord;
+    }
+
+    //-----------------------------------------
+    public int getSnapshotAc() {
+        return snapAc;
+    }
+
+    //-----------------------------------------
+    public String getSnapshotOutput() {
+        return output.substring(0, snapOutput);
+    }
+
+    //-----------------------------------------
+    // Value of an integer dw at the snapshot, or null.
+    //
+    public Integer getSnapshotWord(String label) {
+        Integer slot = slots.get(label);
+        return slot == null ? null : snapMem[slot];
+    }
+
+    //-----------------------------------------
+    public String getOutput() {
+        return output.toString();
+    }
+
+    //-----------------------------------------
+    // Words of code plus data.
+    //
+    public int getSize() {
+        return codeSize + dataSize;
+    }
+
+    //-----------------------------------------
+    // Words of code plus data, without loading code, whose
+    // labels may be defined in other units.
+    //
+    public static int size(R4DCode code) {
+        int words = 0;
+        for (int i = 0; i < code.size(); i++) {
+            R4DInstr r = code.get(i);
+            if (r.kind == R4DInstr.OP)
+                words++;
+            else if (r.kind == R4DInstr.DW)
+                words += !r.opnd.startsWith("\"") ? 1
+                        : unescape(r.opnd.substring(1, r.opnd.length() - 1))
+                        .length() / 2 + 1;
+        }
+        return words;
+    }
+
+    //-----------------------------------------
+    public long getInstructions() {
+        return instructions;
+    }
+
+    //-----------------------------------------
+    // Cycles to execute every instruction once.
+    //
+    public long getStaticCycles() {
+        long total = 0;
+        for (int e = 0; e < n; e++)
+            total += CYCLES[opcode[e]];
+        return total;
+    }
+
+    //-----------------------------------------
+    public long getCycles() {
+        return cycles;
+    }
+}                                        // end of R4DSim
+
+//======================================================
+// JVM backend: lowers compiled code to one static method of
+// a class and runs it in-process, where the JIT can compile
+// it to native code.  ac, the stack pointer and every int dw
+// are locals, and the stack is an int array.  Jumps become
+// goto_w (a conditional one skips over it), so a program
+// may use the whole 64K of a method.  A call stores the
+// number of its return point in a local of the subroutine
+// and jumps; ret is a tableswitch on it, so jsr is not
+// needed.  The class has version 49, which the JVM verifies
+// without stack map frames.
+//
+// An instance is the running program's I/O: the generated
+// code calls dout, aout, sout and din on it.
+//
+class R4DJvm {
+    static final String CLASS = "R4DProgram";
+    static final int MAX_CODE = 65535;
+
+    // locals before the subroutines' and the words'
+    static final int IO = 0;
+    static final int AC = 1;
+    static final int SP = 2;
+    static final int STACK = 3;
+
+    // opcodes used
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int ILOAD = 0x15;
+    static final int ALOAD = 0x19;
+    static final int IALOAD = 0x2e;
+    static final int ISTORE = 0x36;
+    static final int ASTORE = 0x3a;
+    static final int IASTORE = 0x4f;
+    static final int IADD = 0x60;
+    static final int ISUB = 0x64;
+    static final int IMUL = 0x68;
+    static final int IDIV = 0x6c;
+    static final int IINC = 0x84;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFGE = 0x9c;
+    static final int TABLESWITCH = 0xaa;
+    static final int RETURN = 0xb1;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int NEWARRAY = 0xbc;
+    static final int T_INT = 10;
+    static final int WIDE = 0xc4;
+    static final int GOTO_W = 0xc8;
+
+    private HashMap<Integer, String> strings;   // sout text by address
+    private Scanner in;
+    private Writer out;
+
+    // class file being built
+    private ArrayList<byte[]> pool = new ArrayList<byte[]>();
+    private HashMap<String, Integer> poolIndex = new HashMap<String, Integer>();
+    private ByteArrayOutputStream code = new ByteArrayOutputStream();
+    private HashMap<String, Integer> labels = new HashMap<String, Integer>();
+    private ArrayList<int[]> fixups = new ArrayList<int[]>();  // base, field
+    private ArrayList<String> targets = new ArrayList<String>();
+
+    //-----------------------------------------
+    private R4DJvm(Scanner in, Writer out) {
+        this.in = in;
+        this.out = out;
+    }
+
+    //-----------------------------------------
+    // Compile code to a class and run it.  Output goes to out
+    // as it is made; errors are thrown with the messages the
+    // simulator uses.
+    //
+    public static void run(R4DCode code, Scanner in, Writer out)
+            throws IOException {
+        R4DJvm io = new R4DJvm(in, out);
+        byte[] bytes = io.lower(code);
+        MethodHandle main;
+        try {
+            MethodHandles.Lookup program = MethodHandles.lookup()
+                    .defineHiddenClass(bytes, true);
+            main = program.findStatic(program.lookupClass(), "run",
+                    MethodType.methodType(void.class, R4DJvm.class));
+        } catch (ReflectiveOperationException | LinkageError e) {
+            throw new RuntimeException("JVM backend: " + e);
+        }
+        try {
+            main.invokeExact(io);
+        } catch (ArithmeticException e) {
+            throw new RuntimeException("Division by zero");
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new RuntimeException("Stack overflow");
+        } catch (IOException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        } finally {
+            out.flush();
+        }
+    }
+
+    //-----------------------------------------
+    // Called from the generated code.
+    //
+    public void dout(int ac) throws IOException {
+        out.write(Integer.toString(ac));
+    }
+
+    public void aout(int ac) throws IOException {
+        out.write((char) ac);
+    }
+
+    public void sout(int ac) throws IOException {
+        out.write(strings.get(ac));
+    }
+
+    public int din() {
+        if (in == null || !in.hasNextInt())
+            throw new RuntimeException("No input for din");
+        return in.nextInt();
+    }
+
+    public void pastEnd() {
+        throw new RuntimeException("Ran past end of code");
+    }
+
+    // stack index of a relative operand, checked as the
+    // simulator checks it; a push past the top still
+    // overflows the array
+    public int slot(int sp, int offset) {
+        if (offset < 0 || sp + offset >= R4DSim.STACK)
+            throw new RuntimeException("Stack underflow");
+        return sp + offset;
+    }
+
+    //-----------------------------------------
+    // The class file for code.  Data words get the addresses
+    // the simulator gives them, so ldc of a dw loads the same
+    // number.
+    //
+    private byte[] lower(R4DCode code) throws IOException {
+        int size = code.size();
+        int codeSize = 0;
+        for (int i = 0; i < size; i++)
+            if (code.get(i).kind == R4DInstr.OP)
+                codeSize++;
+
+        // call sites of each subroutine, then the locals
+        HashMap<String, ArrayList<Integer>> calls =
+                new HashMap<String, ArrayList<Integer>>();
+        for (int i = 0; i < size; i++) {
+            R4DInstr r = code.get(i);
+            if (r.kind == R4DInstr.OP && r.op.trim().equalsIgnoreCase("call")) {
+                if (!calls.containsKey(r.opnd))
+                    calls.put(r.opnd, new ArrayList<Integer>());
+                calls.get(r.opnd).add(i);
+            }
+        }
+        HashMap<String, Integer> locals = new HashMap<String, Integer>();
+        int next = STACK + 1;
+        for (String sub : calls.keySet())
+            locals.put(sub, next++);
+
+        strings = new HashMap<Integer, String>();
+        HashMap<String, Integer> addresses = new HashMap<String, Integer>();
+        ArrayList<String> words = new ArrayList<String>();
+        ArrayList<Integer> values = new ArrayList<Integer>();
+        int address = codeSize;
+        for (int i = 0; i < size; i++) {
+            R4DInstr r = code.get(i);
+            if (r.kind != R4DInstr.DW)
+                continue;
+            addresses.put(r.label, address);
+            if (r.opnd.startsWith("\"")) {
+                String s = R4DSim.unescape(r.opnd.substring(1, r.opnd.length() - 1));
+                strings.put(address, s);
+                address += s.length() / 2 + 1;
+            } else {
+                locals.put(r.label, next++);
+                words.add(r.label);
+                values.add(Integer.parseInt(r.opnd));
+                address++;
+            }
+        }
+        if (next > MAX_CODE)
+            throw new RuntimeException("Too many data words for -jvm");
+
+        // ac = 0, an empty stack, and each word's dw value
+        push(0);
+        store(AC);
+        push(R4DSim.STACK);
+        store(SP);
+        push(R4DSim.STACK);
+        code(NEWARRAY, T_INT);
+        code(ASTORE, STACK);
+        for (String sub : calls.keySet()) {
+            push(0);
+            store(locals.get(sub));
+        }
+        for (int w = 0; w < words.size(); w++) {
+            push(values.get(w));
+            store(locals.get(words.get(w)));
+        }
+
+        String sub = null;                    // subroutine we are in
+        for (int i = 0; i < size; i++) {
+            R4DInstr r = code.get(i);
+            if (r.kind == R4DInstr.LABEL) {
+                labels.put(r.label, this.code.size());
+                if (calls.containsKey(r.label))
+                    sub = r.label;
+            }
+            if (r.kind != R4DInstr.OP)
+                continue;
+            String op = r.op.trim().toLowerCase();
+            String x = r.opnd;
+            switch (op) {
+                case "halt":
+                    code(RETURN);
+                    break;
+                case "ld":
+                    load(word(locals, x));
+                    store(AC);
+                    break;
+                case "st":
+                    load(AC);
+                    store(word(locals, x));
+                    break;
+                case "ldc":
+                    if (x.startsWith("'"))
+                        push(R4DSim.unescape(x.substring(1, x.length() - 1)).charAt(0));
+                    else if (addresses.containsKey(x))
+                        push(addresses.get(x));
+                    else
+                        push(Integer.parseInt(x));
+                    store(AC);
+                    break;
+                case "add":
+                case "sub":
+                case "mult":
+                case "div":
+                    load(AC);
+                    load(word(locals, x));
+                    code(arithmetic(op));
+                    store(AC);
+                    break;
+                case "ja":
+                    jump(x);
+                    break;
+                case "jz":
+                case "jnz":
+                    load(AC);
+                    code(op.equals("jz") ? IFNE : IFEQ, 0, 8);  // over goto_w
+                    jump(x);
+                    break;
+                case "jn":
+                    load(AC);
+                    code(IFGE, 0, 8);
+                    jump(x);
+                    break;
+                case "dout":
+                case "aout":
+                case "sout":
+                    code(ALOAD, IO);
+                    load(AC);
+                    invoke(op, "(I)V");
+                    break;
+                case "din":
+                    code(ALOAD, IO);
+                    invoke("din", "()I");
+                    store(AC);
+                    break;
+                case "push":
+                    iinc(SP, -1);
+                    code(ALOAD, STACK);
+                    load(SP);
+                    load(AC);
+                    code(IASTORE);
+                    break;
+                case "dloc":
+                    iinc(SP, Integer.parseInt(x));
+                    break;
+                case "ldr":
+                    slot(x);
+                    code(IALOAD);
+                    store(AC);
+                    break;
+                case "str":
+                    slot(x);
+                    load(AC);
+                    code(IASTORE);
+                    break;
+                case "addr":
+                case "subr":
+                case "multr":
+                case "divr":
+                    load(AC);
+                    slot(x);
+                    code(IALOAD);
+                    code(arithmetic(op.substring(0, op.length() - 1)));
+                    store(AC);
+                    break;
+                case "call":
+                    push(calls.get(x).indexOf(i));
+                    store(locals.get(x));
+                    jump(x);
+                    labels.put("\0" + i, this.code.size());
+                    break;
+                case "ret":
+                    if (sub == null)
+                        throw new RuntimeException("ret outside a subroutine");
+                    ret(locals.get(sub), calls.get(sub));
+                    break;
+                default:
+                    throw new RuntimeException("Unknown instruction " + r.op);
+            }
+        }
+        code(ALOAD, IO);
+        invoke("pastEnd", "()V");
+        code(RETURN);
+
+        byte[] body = this.code.toByteArray();
+        if (body.length > MAX_CODE)
+            throw new RuntimeException("Program too large for -jvm");
+        for (int f = 0; f < fixups.size(); f++) {
+            Integer target = labels.get(targets.get(f));
+            if (target == null)
+                throw new RuntimeException("Undefined symbol " + targets.get(f));
+            int base = fixups.get(f)[0];
+            int field = fixups.get(f)[1];
+            int offset = target - base;
+            for (int k = 0; k < 4; k++)
+                body[field + k] = (byte) (offset >> (24 - 8 * k));
+        }
+        return classFile(body, next);
+    }
+
+    //-----------------------------------------
+    private static int word(HashMap<String, Integer> locals, String name) {
+        Integer local = locals.get(name);
+        if (local == null)
+            throw new RuntimeException("Undefined symbol " + name);
+        return local;
+    }
+
+    //-----------------------------------------
+    private static int arithmetic(String op) {
+        switch (op) {
+            case "add":
+                return IADD;
+            case "sub":
+                return ISUB;
+            case "mult":
+                return IMUL;
+            default:
+                return IDIV;
+        }
+    }
+
+    //-----------------------------------------
+    // stack, sp + offset: the address of a stack slot
+    //
+    private void slot(String offset) {
+        code(ALOAD, STACK);
+        code(ALOAD, IO);
+        load(SP);
+        push(Integer.parseInt(offset));
+        invoke("slot", "(II)I");
+    }
+
+    //-----------------------------------------
+    private void code(int... bytes) {
+        for (int b : bytes)
+            code.write(b);
+    }
+
+    //-----------------------------------------
+    private void u2(int value) {
+        code(value >> 8 & 0xff, value & 0xff);
+    }
+
+    //-----------------------------------------
+    private void push(int value) {
+        if (value >= -1 && value <= 5)
+            code(ICONST_0 + value);
+        else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+            code(BIPUSH, value & 0xff);
+        else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            code(SIPUSH);
+            u2(value);
+        } else {
+            code(LDC_W);
+            u2(constant(3, value, ""));
+        }
+    }
+
+    //-----------------------------------------
+    private void load(int local) {
+        local(ILOAD, local);
+    }
+
+    private void store(int local) {
+        local(ISTORE, local);
+    }
+
+    private void local(int op, int local) {
+        if (local < 4)
+            code(op + 5 + local);      // iload_0, istore_0, ...
+        else if (local < 256)
+            code(op, local);
+        else {
+            code(WIDE, op);
+            u2(local);
+        }
+    }
+
+    //-----------------------------------------
+    private void iinc(int local, int by) {
+        if (local < 256 && by >= Byte.MIN_VALUE && by <= Byte.MAX_VALUE)
+            code(IINC, local, by & 0xff);
+        else {
+            code(WIDE, IINC);
+            u2(local);
+            u2(by);
+        }
+    }
+
+    //-----------------------------------------
+    private void jump(String label) {
+        fixups.add(new int[]{code.size(), code.size() + 1});
+        targets.add(label);
+        code(GOTO_W, 0, 0, 0, 0);
+    }
+
+    //-----------------------------------------
+    // Back to the call site whose number is in local.
+    //
+    private void ret(int local, ArrayList<Integer> sites) {
+        load(local);
+        int base = code.size();
+        code(TABLESWITCH);
+        while (code.size() % 4 != 0)
+            code(0);
+        fixups.add(new int[]{base, code.size()});     // default
+        targets.add("\0" + sites.get(0));
+        code(0, 0, 0, 0);
+        code(0, 0, 0, 0);
+        code(sites.size() - 1 >> 24 & 0xff, sites.size() - 1 >> 16 & 0xff,
+                sites.size() - 1 >> 8 & 0xff, sites.size() - 1 & 0xff);
+        for (int site : sites) {
+            fixups.add(new int[]{base, code.size()});
+            targets.add("\0" + site);
+            code(0, 0, 0, 0);
+        }
+    }
+
+    //-----------------------------------------
+    private void invoke(String name, String descriptor) {
+        code(INVOKEVIRTUAL);
+        u2(constant(10, constant(7, constant(1, 0, "R4DJvm"), ""),
+                constant(12, constant(1, 0, name), constant(1, 0, descriptor))));
+    }
+
+    //-----------------------------------------
+    // Index of a constant pool entry: tag 1 (Utf8, text),
+    // 3 (Integer, a), 7 (Class, Utf8 a), 12 (NameAndType,
+    // Utf8s a and b) or 10 (Methodref, Class a and
+    // NameAndType b).
+    //
+    private int constant(int tag, int a, String text) {
+        return constant(tag, a, -1, text);
+    }
+
+    private int constant(int tag, int a, int b) {
+        return constant(tag, a, b, "");
+    }
+
+    private int constant(int tag, int a, int b, String text) {
+        String key = tag + " " + a + " " + b + " " + text;
+        Integer index = poolIndex.get(key);
+        if (index != null)
+            return index;
+        ByteArrayOutputStream entry = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(entry);
+        try {
+            data.writeByte(tag);
+            if (tag == 1)
+                data.writeUTF(text);
+            else if (tag == 3)
+                data.writeInt(a);
+            else {
+                data.writeShort(a);
+                if (tag != 7)
+                    data.writeShort(b);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        pool.add(entry.toByteArray());
+        poolIndex.put(key, pool.size());
+        return pool.size();
+    }
+
+    //-----------------------------------------
+    private byte[] classFile(byte[] body, int maxLocals) throws IOException {
+        int thisClass = constant(7, constant(1, 0, CLASS), "");
+        int superClass = constant(7, constant(1, 0, "java/lang/Object"), "");
+        int name = constant(1, 0, "run");
+        int descriptor = constant(1, 0, "(LR4DJvm;)V");
+        int attribute = constant(1, 0, "Code");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream file = new DataOutputStream(bytes);
+        file.writeInt(0xcafebabe);
+        file.writeShort(0);
+        file.writeShort(49);
+        file.writeShort(pool.size() + 1);
+        for (byte[] entry : pool)
+            file.write(entry);
+        file.writeShort(0x0031);           // public final super
+        file.writeShort(thisClass);
+        file.writeShort(superClass);
+        file.writeShort(0);                // interfaces
+        file.writeShort(0);                // fields
+        file.writeShort(1);                // methods
+        file.writeShort(0x0009);           // public static
+        file.writeShort(name);
+        file.writeShort(descriptor);
+        file.writeShort(1);
+        file.writeShort(attribute);
+        file.writeInt(12 + body.length);
+        file.writeShort(5);                // max stack
+        file.writeShort(maxLocals);
+        file.writeInt(body.length);
+        file.write(body);
+        file.writeShort(0);                // exception table
+        file.writeShort(0);                // code attributes
+        file.writeShort(0);                // class attributes
+        return bytes.toByteArray();
+    }
+}                                        // end of R4DJvm
+
+//======================================================
+// Block and branch counts from a -profile-gen run, keyed to
+// source lines.  Each if/while/do is one site, identified by
+// the line and column of its keyword; a site records how
+// often the statement was entered and how often its body
+// (the then arm for an if) ran.
+//
+//   site <kind> <line> <column> <entries> <body>
+//   line <line> <count>
+//
+class R4DProfile {
+    // a line is hot if it runs at least once per HOT_RATIO
+    // executions of the hottest line
+    static final long HOT_RATIO = 100;
+
+    private HashMap<String, long[]> sites;
+    private HashMap<Integer, Long> lines;
+    private long hottest;
+
+    //-----------------------------------------
+    public R4DProfile() {
+        sites = new HashMap<String, long[]>();
+        lines = new HashMap<Integer, Long>();
+    }
+
+    //-----------------------------------------
+    public static R4DProfile load(String fileName) throws IOException {
+        R4DProfile p = new R4DProfile();
+        Scanner inFile = new Scanner(new File(fileName));
+        while (inFile.hasNextLine()) {
+            String[] f = inFile.nextLine().trim().split("\\s+");
+            if (f[0].equals("site") && f.length == 6)
+                p.sites.put(f[1] + " " + f[2] + " " + f[3], new long[]{
+                        Long.parseLong(f[4]), Long.parseLong(f[5])});
+            else if (f[0].equals("line") && f.length == 3) {
+                long c = Long.parseLong(f[2]);
+                p.lines.put(Integer.parseInt(f[1]), c);
+                p.hottest = Math.max(p.hottest, c);
+            }
+        }
+        inFile.close();
+        return p;
+    }
+
+    //-----------------------------------------
+    // Write the counts a simulator run collected for code.
+    //
+    public static void write(String fileName, R4DCode code, R4DSim sim)
+            throws IOException {
+        HashMap<String, long[]> sites = new HashMap<String, long[]>();
+        ArrayList<String> order = new ArrayList<String>();
+        HashMap<Integer, Long> lines = new HashMap<Integer, Long>();
+        ArrayList<Integer> lineOrder = new ArrayList<Integer>();
+
+        for (int i = 0; i < code.size(); i++) {
+            R4DInstr r = code.get(i);
+            if (r.kind == R4DInstr.PROBE) {
+                int k = r.label.lastIndexOf(' ');
+                String site = r.label.substring(0, k);
+                if (!sites.containsKey(site)) {
+                    sites.put(site, new long[2]);
+                    order.add(site);
+                }
+                int role = r.label.endsWith(" entry") ? 0 : 1;
+                sites.get(site)[role] += sim.getCount(i);
+            } else if (r.kind == R4DInstr.OP) {
+                Long c = lines.get(r.line);
+                if (c == null)
+                    lineOrder.add(r.line);
+                if (c == null || c < sim.getCount(i))
+                    lines.put(r.line, sim.getCount(i));
+            }
+        }
+
+        PrintWriter outFile = new PrintWriter(fileName);
+        outFile.println("; profile from Compiler compiler");
+        for (String site : order)
+            outFile.println("site " + site + " " +
+                    sites.get(site)[0] + " " + sites.get(site)[1]);
+        for (Integer line : lineOrder)
+            outFile.println("line " + line + " " + lines.get(line));
+        outFile.close();
+    }
+
+    //-----------------------------------------
+    // {entries, body executions} for a site, or null if the
+    // statement did not exist when the profile was taken.
+    //
+    public long[] getSite(String site) {
+        return sites.get(site);
+    }
+
+    //-----------------------------------------
+    // Size-increasing transformations are only worth their
+    // cost on hot lines.
+    //
+    public boolean isHot(int line) {
+        Long c = lines.get(line);
+        return c != null && c > 1 && c * HOT_RATIO >= hottest;
+    }
+}                                    // end of R4DProfile
+
+//======================================================
+// Profiling executor for generated code: runs an .a file
+// on the simulator and charges every instruction executed
+// to the source line echoed above it.  The report lists
+// the hottest statements, the traffic to @t temps and the
+// cost of I/O.
+//
+class R4DReport {
+    static final int TOP = 20;     // hottest lines listed
+
+    //-----------------------------------------
+    public static void run(String name) throws IOException {
+        Scanner inFile = new Scanner(new File(name + ".a"));
+        R4DCode code = R4DCode.load(inFile);
+        inFile.close();
+
+        // compiled with -map: positions and text come from the
+        // line table and the source file instead of the echo
+        ArrayList<String> source = null;
+        if (new File(name + ".map").exists()) {
+            R4DSourceMap.apply(code, name + ".map");
+            if (new File(name + ".s").exists()) {
+                source = new ArrayList<String>();
+                inFile = new Scanner(new File(name + ".s"));
+                while (inFile.hasNextLine())
+                    source.add(inFile.nextLine());
+                inFile.close();
+            }
+        }
+
+        R4DSim sim = new R4DSim(code, new Scanner(System.in));
+        String error = null;
+        try {
+            sim.run(R4DSim.MAX_STEPS);
+        } catch (RuntimeException e) {
+            error = e.getMessage();
+        }
+        System.out.print(sim.getOutput());
+
+        PrintWriter outFile = new PrintWriter(name + ".report");
+        report(code, sim, source, outFile);
+        if (error != null)
+            outFile.println("; stopped: " + error);
+        outFile.close();
+        System.out.println();
+        System.out.println("Profile written to " + name + ".report");
+    }
+
+    //-----------------------------------------
+    public static void report(R4DCode code, R4DSim sim,
+                              ArrayList<String> source, PrintWriter outFile) {
+        HashMap<Integer, long[]> lines = new HashMap<Integer, long[]>();
+        HashMap<Integer, String> text = new HashMap<Integer, String>();
+        long[] temps = new long[2];     // executions, cycles
+        long[] io = new long[2];
+
+        for (int i = 0; i < code.size(); i++) {
+            R4DInstr r = code.get(i);
+            if (r.kind == R4DInstr.TEXT && r.op.startsWith("; ")
+                    && r.line > 0 && !text.containsKey(r.line))
+                text.put(r.line, r.op.substring(2));
+            if (r.kind != R4DInstr.OP)
+                continue;
+
+            long count = sim.getCount(i);
+            long cycles = sim.getCost(i);
+            long[] l = lines.get(r.line);
+            if (l == null)
+                lines.put(r.line, l = new long[2]);
+            l[0] += count;
+            l[1] += cycles;
+
+            String op = r.op.trim().toLowerCase();
+            if (r.opnd != null && r.opnd.startsWith("@t")
+                    || R4DSim.isStackOp(op)) {
+                temps[0] += count;
+                temps[1] += cycles;
+            }
+            if (op.equals("dout") || op.equals("aout")
+                    || op.equals("sout") || op.equals("din")) {
+                io[0] += count;
+                io[1] += cycles;
+            }
+        }
+
+        ArrayList<Integer> order = new ArrayList<Integer>(lines.keySet());
+        order.sort((a, b) -> Long.compare(lines.get(b)[1], lines.get(a)[1]));
+
+        long total = sim.getCycles();
+        outFile.printf("; %d instructions, %d cycles, %d words%n",
+                sim.getInstructions(), total, sim.getSize());
+        outFile.println();
+        outFile.println(";  line   instrs    cycles      %  source");
+        for (int k = 0; k < order.size() && k < TOP; k++) {
+            int line = order.get(k);
+            long[] l = lines.get(line);
+            String src = text.get(line);
+            if (src == null && source != null && line >= 1 && line <= source.size())
+                src = source.get(line - 1);
+            outFile.printf("%7d %8d %9d %6.2f  %s%n", line, l[0], l[1],
+                    percent(l[1], total), src == null ? "" : src.trim());
+        }
+        outFile.println();
+        outFile.printf("; @t temp loads/stores: %d instrs, %d cycles (%.2f%%)%n",
+                temps[0], temps[1], percent(temps[1], total));
+        outFile.printf("; I/O instructions:     %d instrs, %d cycles (%.2f%%)%n",
+                io[0], io[1], percent(io[1], total));
+    }
+
+    //-----------------------------------------
+    private static double percent(long part, long whole) {
+        return whole == 0 ? 0 : 100.0 * part / whole;
+    }
+}                                        // end of R4DReport
+
+//======================================================
+// Line table written by -map in place of the source echo.
+// It maps code word offsets to the line and column of the
+// statement the code came from.  A row is written only
+// where the position changes:
+//
+//   "R4DM" version rows { offset+ line+- column }
+//
+// with every number a base-128 varint, offsets and lines
+// delta-coded and line deltas zigzag-coded.
+//
+class R4DSourceMap {
+    static final int VERSION = 1;
+
+    //-----------------------------------------
+    public static void write(String fileName, R4DCode code)
+            throws IOException {
+        ByteArrayOutputStream rows = new ByteArrayOutputStream();
+        int count = 0;
+        int offset = 0;
+        int lastOffset = 0;
+        int lastLine = 0;
+        int lastColumn = -1;
+        for (int i = 0; i < code.size(); i++) {
+            R4DInstr r = code.get(i);
+            if (r.kind != R4DInstr.OP)
+                continue;
+            if (r.line != lastLine || r.column != lastColumn) {
+                writeVarint(rows, offset - lastOffset);
+                int d = r.line - lastLine;
+                writeVarint(rows, (d << 1) ^ (d >> 31));
+                writeVarint(rows, r.column);
+                lastOffset = offset;
+                lastLine = r.line;
+                lastColumn = r.column;
+                count++;
+            }
+            offset++;
+        }
+
+        FileOutputStream outFile = new FileOutputStream(fileName);
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        header.write(new byte[]{'R', '4', 'D', 'M'});
+        writeVarint(header, VERSION);
+        writeVarint(header, count);
+        header.writeTo(outFile);
+        rows.writeTo(outFile);
+        outFile.close();
+    }
+
+    //-----------------------------------------
+    // Attribute each instruction of code to the position
+    // the map gives for its offset.
+    //
+    public static void apply(R4DCode code, String fileName)
+            throws IOException {
+        DataInputStream inFile = new DataInputStream(
+                new BufferedInputStream(
+                        new FileInputStream(fileName)));
+        byte[] magic = new byte[4];
+        inFile.readFully(magic);
+        if (!new String(magic, "US-ASCII").equals("R4DM")
+                || readVarint(inFile) != VERSION)
+            throw new IOException(fileName + " is not a source map");
+        int count = readVarint(inFile);
+        int[] offset = new int[count];
+        int[] line = new int[count];
+        int[] column = new int[count];
+        for (int k = 0; k < count; k++) {
+            int z = readVarint(inFile);
+            offset[k] = (k == 0 ? 0 : offset[k - 1]) + z;
+            z = readVarint(inFile);
+            line[k] = (k == 0 ? 0 : line[k - 1]) + ((z >>> 1) ^ -(z & 1));
+            column[k] = readVarint(inFile);
+        }
+        inFile.close();
+
+        int k = -1;
+        int address = 0;
+        for (int i = 0; i < code.size(); i++) {
+            R4DInstr r = code.get(i);
+            if (r.kind != R4DInstr.OP)
+                continue;
+            while (k + 1 < count && offset[k + 1] <= address)
+                k++;
+            if (k >= 0) {
+                r.line = line[k];
+                r.column = column[k];
+            }
+            address++;
+        }
+    }
+
+    //-----------------------------------------
+    private static void writeVarint(OutputStream out, int v)
+            throws IOException {
+        while ((v & ~0x7f) != 0) {
+            out.write((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out.write(v);
+    }
+
+    //-----------------------------------------
+    private static int readVarint(DataInputStream in)
+            throws IOException {
+        int v = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return v;
+        }
+    }
+}                                     // end of R4DSourceMap
+
+//======================================================
+// Seeded generator of random, terminating programs that
+// use every statement the parser accepts.  Loops count a
+// reserved variable down to zero so every program halts.
+//
+class R4DGen {
+    // variables statements may assign
+    static final String[] VARS = {"a", "b", "c", "x", "y", "z"};
+    static final int MAX_LOOP_DEPTH = 2;
+    static final int MAX_EXPR_DEPTH = 3;
+    static final String[] RELATIONS = {"<", "<=", ">", ">=", "==", "!="};
+
+    private Random rand;
+    private StringBuilder out;
+    private int budget;          // statements left to generate
+    private int counters;        // loop counters handed out
+    private int loopDepth;
+
+    //-----------------------------------------
+    public R4DGen(long seed) {
+        rand = new Random(seed);
+    }
+
+    //-----------------------------------------
+    public String program(int size) {
+        out = new StringBuilder();
+        budget = size;
+        counters = 0;
+        loopDepth = 0;
+        while (budget > 0)
+            statement("", true);
+        return out.toString();
+    }
+
+    //-----------------------------------------
+    // Null statements are only legal inside statement lists,
+    // not as the body of an if, while or do.
+    //
+    private void statement(String indent, boolean inList) {
+        budget--;
+        int r = rand.nextInt(100);
+        if (r < 30) {
+            out.append(indent).append(var()).append(" = ");
+            if (rand.nextInt(8) == 0)
+                out.append(var()).append(" = ");
+            out.append(expr(MAX_EXPR_DEPTH)).append(";");
+        } else if (r < 45)
+            out.append(indent).append("println(").append(printArg(true)).append(");");
+        else if (r < 53)
+            out.append(indent).append("print(").append(printArg(false)).append(");");
+        else if (r < 57)
+            out.append(indent).append("readint(").append(var()).append(");");
+        else if (r < 67)
+            ifStatement(indent);
+        else if (r < 80 && loopDepth < MAX_LOOP_DEPTH)
+            loop(indent, inList);
+        else if (r < 92 || !inList)
+            compound(indent);
+        else
+            out.append(indent).append(";");
+
+        if (rand.nextInt(10) == 0)
+            out.append("   // ").append(word());
+        out.append("\n");
+    }
+
+    //-----------------------------------------
+    private void ifStatement(String indent) {
+        out.append(indent).append("if (").append(cond()).append(")\n");
+        statement(indent + "    ", false);
+        while (rand.nextInt(3) == 0) {
+            out.append(indent).append("else if (").append(cond()).append(")\n");
+            statement(indent + "    ", false);
+        }
+        if (rand.nextBoolean()) {
+            out.append(indent).append("else\n");
+            statement(indent + "    ", false);
+        }
+        out.setLength(out.length() - 1);   // caller ends the line
+    }
+
+    //-----------------------------------------
+    // while or do loop counting a fresh variable down to 0,
+    // braced where a single statement is required
+    //
+    private void loop(String indent, boolean inList) {
+        if (!inList) {
+            out.append(indent).append("{\n");
+            loop(indent + "    ", true);
+            out.append("\n").append(indent).append("}");
+            return;
+        }
+        String n = "n" + counters++;
+        out.append(indent).append(n).append(" = ")
+                .append(1 + rand.nextInt(4)).append(";\n");
+        if (rand.nextInt(3) == 0)  // leave something else in ac
+            out.append(indent).append(var()).append(" = ")
+                    .append(operand()).append(";\n");
+        boolean isDo = rand.nextBoolean();
+        String test = counter(n);
+        out.append(indent).append(isDo ? "do {\n" : "while (" + test + ") {\n");
+        loopDepth++;
+        int k = 1 + rand.nextInt(3);
+        for (int i = 0; i < k && budget > 0; i++)
+            statement(indent + "    ", true);
+        loopDepth--;
+        out.append(indent).append("    ").append(n).append(" = ")
+                .append(n).append(" - 1;\n");
+        out.append(indent).append(isDo ? "} while (" + test + ");" : "}");
+    }
+
+    //-----------------------------------------
+    // Test of loop counter n, which counts down from above 0.
+    //
+    private String counter(String n) {
+        switch (rand.nextInt(6)) {
+            case 0:
+                return n + " > 0";
+            case 1:
+                return n + " != 0";
+            case 2:
+                return "0 < " + n;
+            case 3:
+                return n + " >= 1 && " + comparison();
+            default:
+                return n;
+        }
+    }
+
+    //-----------------------------------------
+    private void compound(String indent) {
+        out.append(indent).append("{\n");
+        int k = rand.nextInt(4);
+        for (int i = 0; i < k && budget > 0; i++)
+            statement(indent + "    ", true);
+        out.append(indent).append("}");
+    }
+
+    //-----------------------------------------
+    private String printArg(boolean mayBeEmpty) {
+        int r = rand.nextInt(10);
+        if (r < 2 && mayBeEmpty)
+            return "";
+        if (r < 5)
+            return string();
+        return expr(MAX_EXPR_DEPTH);
+    }
+
+    //-----------------------------------------
+    private String cond() {
+        if (counters > 0 && rand.nextInt(4) == 0)
+            return "n" + rand.nextInt(counters);
+        if (rand.nextInt(3) > 0)
+            return var();
+        String cond = group();
+        while (rand.nextInt(3) == 0)
+            cond += (rand.nextBoolean() ? " && " : " || ") + group();
+        return cond;
+    }
+
+    //-----------------------------------------
+    // A comparison, or two of them in parentheses.
+    //
+    private String group() {
+        if (rand.nextInt(4) > 0)
+            return comparison();
+        return "(" + comparison() + (rand.nextBoolean() ? " && " : " || ")
+                + comparison() + ")";
+    }
+
+    //-----------------------------------------
+    private String comparison() {
+        if (rand.nextInt(4) == 0)
+            return expr(1);
+        return expr(1) + " " + RELATIONS[rand.nextInt(RELATIONS.length)]
+                + " " + expr(1);
+    }
+
+    //-----------------------------------------
+    private String expr(int depth) {
+        int r = rand.nextInt(depth <= 0 ? 3 : 10);
+        switch (r) {
+            case 0:
+                return literal();
+            case 1:
+                return operand();
+            case 2:
+                return unary() + factor(depth - 1);
+            case 3:
+                return expr(depth - 1) + " + " + expr(depth - 1);
+            case 4:
+                return expr(depth - 1) + " - " + factor(depth - 1);
+            case 5:
+                return factor(depth - 1) + " * " + factor(depth - 1);
+            case 6:
+                return factor(depth - 1) + " / " + (1 + rand.nextInt(9));
+            case 7:
+                return "(" + expr(depth - 1) + ")";
+            default:
+                return expr(depth - 1) + " - " + expr(depth - 1) + " * " + factor(depth - 1);
+        }
+    }
+
+    //-----------------------------------------
+    private String factor(int depth) {
+        int r = rand.nextInt(depth <= 0 ? 2 : 4);
+        if (r == 0)
+            return literal();
+        if (r == 1)
+            return operand();
+        if (r == 2)
+            return unary() + factor(depth - 1);
+        return "(" + expr(depth - 1) + ")";
+    }
+
+    //-----------------------------------------
+    // A chain of unary signs such as "-", "- -" or "-+".
+    //
+    private String unary() {
+        StringBuilder b = new StringBuilder();
+        int k = 1 + rand.nextInt(3);
+        for (int i = 0; i < k; i++)
+            b.append(rand.nextInt(3) == 0 ? "+" : "-").append(rand.nextBoolean() ? " " : "");
+        return b.toString();
+    }
+
+    //-----------------------------------------
+    // Mostly small; sometimes large enough that sums,
+    // products and differences wrap around.
+    //
+    private String literal() {
+        int r = rand.nextInt(12);
+        if (r == 0)
+            return "" + (Integer.MAX_VALUE - rand.nextInt(3));
+        if (r == 1)
+            return "" + rand.nextInt(Integer.MAX_VALUE);
+        if (r < 4)
+            return "" + rand.nextInt(10000);
+        return "" + rand.nextInt(21);
+    }
+
+    //-----------------------------------------
+    private String operand() {
+        if (counters > 0 && rand.nextInt(5) == 0)
+            return "n" + rand.nextInt(counters);
+        return var();
+    }
+
+    //-----------------------------------------
+    private String var() {
+        return VARS[rand.nextInt(VARS.length)];
+    }
+
+    //-----------------------------------------
+    private String word() {
+        StringBuilder b = new StringBuilder();
+        int k = 1 + rand.nextInt(8);
+        for (int i = 0; i < k; i++)
+            b.append((char) ('a' + rand.nextInt(26)));
+        return b.toString();
+    }
+
+    //-----------------------------------------
+    // String literal, sometimes with an escape or continued
+    // onto the next line with backslash-newline.
+    //
+    private String string() {
+        StringBuilder b = new StringBuilder("\"");
+        b.append(word());
+        int r = rand.nextInt(6);
+        if (r == 0)
+            b.append("\\n");
+        else if (r == 1)
+            b.append(" ").append(word());
+        else if (r == 2)
+            b.append("\\\n").append(word());
+        return b.append("\"").toString();
+    }
+
+    //-----------------------------------------
+    // Values readint calls consume, derived from the seed:
+    // mostly small, some anywhere in the int range, some
+    // at either end of it.
+    //
+    public static String input(long seed) {
+        Random r = new Random(~seed);
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            int k = r.nextInt(10);
+            if (k == 0)
+                b.append(r.nextInt());
+            else if (k == 1)
+                b.append(r.nextBoolean() ? Integer.MAX_VALUE - r.nextInt(3)
+                        : Integer.MIN_VALUE + r.nextInt(3));
+            else
+                b.append(r.nextInt(41) - 20);
+            b.append(' ');
+        }
+        return b.toString();
+    }
+}                                          // end of R4DGen
+
+//======================================================
+// Reference evaluator for -fuzz.  It runs a source program
+// directly, with its own scanner and an interpreting
+// recursive-descent parser, and shares no code with the
+// compiler.  Arithmetic is Java int arithmetic, as on the
+// machine: it wraps around and division truncates.  What
+// it prints is what every optimization level must print.
+//
+class R4DEval {
+    static final long MAX_STEPS = 10000000L;
+    static final List<String> RELATIONS =
+            Arrays.asList("<", "<=", ">", ">=", "==", "!=");
+    static final List<String> PAIRS =
+            Arrays.asList("<=", ">=", "==", "!=", "&&", "||");
+
+    private ArrayList<String> tokens = new ArrayList<String>();
+    private int pos;
+    private HashMap<String, Integer> vars = new HashMap<String, Integer>();
+    private Scanner in;
+    private StringBuilder output = new StringBuilder();
+    private long steps;
+
+    //-----------------------------------------
+    // Output of src with readint input from input; an error
+    // at run time ends it with "<message>", as in -fuzz.
+    //
+    public static String run(String src, String input) {
+        R4DEval e = new R4DEval();
+        e.in = new Scanner(input);
+        try {
+            e.scan(src);
+            while (!e.peek().isEmpty())
+                e.statement(true);
+        } catch (RuntimeException x) {
+            return e.output + "<" + x.getMessage() + ">";
+        }
+        return e.output.toString();
+    }
+
+    //-----------------------------------------
+    // Split src into tokens.  A string token keeps its
+    // opening quote, followed by its text with escapes and
+    // backslash-newline continuations resolved.
+    //
+    private void scan(String src) {
+        int i = 0;
+        while (i < src.length()) {
+            char c = src.charAt(i);
+            if (Character.isWhitespace(c))
+                i++;
+            else if (src.startsWith("//", i)) {
+                while (i < src.length() && src.charAt(i) != '\n')
+                    i++;
+            } else if (Character.isLetterOrDigit(c)) {
+                int start = i;
+                while (i < src.length() && Character.isLetterOrDigit(src.charAt(i)))
+                    i++;
+                tokens.add(src.substring(start, i));
+            } else if (c == '"') {
+                StringBuilder b = new StringBuilder("\"");
+                for (i++; i < src.length() && src.charAt(i) != '"'; i++) {
+                    char d = src.charAt(i);
+                    if (d == '\\' && i + 1 < src.length()) {
+                        d = src.charAt(++i);
+                        if (d == '\n')
+                            continue;
+                        d = d == 'n' ? '\n' : d == 't' ? '\t'
+                                : d == 'r' ? '\r' : d == '0' ? '\0' : d;
+                    }
+                    b.append(d);
+                }
+                if (i++ >= src.length())
+                    throw new RuntimeException("Unterminated string");
+                tokens.add(b.toString());
+            } else if (i + 1 < src.length()
+                    && PAIRS.contains(src.substring(i, i + 2))) {
+                tokens.add(src.substring(i, i + 2));
+                i += 2;
+            } else {
+                tokens.add(String.valueOf(c));
+                i++;
+            }
+        }
+    }
+
+    //-----------------------------------------
+    private String peek() {
+        return pos < tokens.size() ? tokens.get(pos) : "";
+    }
+
+    //-----------------------------------------
+    private String next() {
+        String t = peek();
+        pos++;
+        return t;
+    }
+
+    //-----------------------------------------
+    private void expect(String t) {
+        if (!next().equals(t))
+            throw new RuntimeException("Expecting " + t);
+    }
+
+    //-----------------------------------------
+    private void step() {
+        if (++steps > MAX_STEPS)
+            throw new RuntimeException("Too many steps");
+    }
+
+    //-----------------------------------------
+    // Run (or, when run is false, just skip) one statement.
+    //
+    private void statement(boolean run) {
+        if (run)
+            step();
+        String t = next();
+        switch (t) {
+            case ";":
+                return;
+            case "{":
+                while (!peek().equals("}"))
+                    statement(run);
+                pos++;
+                return;
+            case "println":
+            case "print":
+                expect("(");
+                if (peek().startsWith("\"")) {
+                    String s = next();
+                    if (run)
+                        output.append(s, 1, s.length());
+                } else if (!peek().equals(")")) {
+                    int v = expr(run);
+                    if (run)
+                        output.append(v);
+                }
+                expect(")");
+                expect(";");
+                if (run && t.equals("println"))
+                    output.append('\n');
+                return;
+            case "readint":
+                expect("(");
+                String name = next();
+                expect(")");
+                expect(";");
+                if (run) {
+                    if (!in.hasNextInt())
+                        throw new RuntimeException("No input for din");
+                    vars.put(name, in.nextInt());
+                }
+                return;
+            case "if":
+                expect("(");
+                boolean c = condition(run);
+                expect(")");
+                statement(run && c);
+                if (peek().equals("else")) {
+                    pos++;
+                    statement(run && !c);
+                }
+                return;
+            case "while":
+                expect("(");
+                int test = pos;
+                while (true) {
+                    pos = test;
+                    boolean holds = condition(run);
+                    expect(")");
+                    statement(run && holds);
+                    if (!run || !holds)
+                        return;
+                    step();
+                }
+            case "do":
+                int body = pos;
+                while (true) {
+                    pos = body;
+                    statement(run);
+                    expect("while");
+                    expect("(");
+                    boolean holds = condition(run);
+                    expect(")");
+                    expect(";");
+                    if (!run || !holds)
+                        return;
+                    step();
+                }
+            default:
+                pos--;
+                assign(run);
+                expect(";");
+        }
+    }
+
+    //-----------------------------------------
+    // name = [name = ...] expr
+    //
+    private int assign(boolean run) {
+        String name = next();
+        expect("=");
+        boolean chain = pos + 1 < tokens.size()
+                && tokens.get(pos + 1).equals("=");
+        int v = chain ? assign(run) : expr(run);
+        if (run)
+            vars.put(name, v);
+        return v;
+    }
+
+    //-----------------------------------------
+    // condition -> conjunction { "||" conjunction }, with the
+    // right side of || and && skipped once the result is known
+    //
+    private boolean condition(boolean run) {
+        boolean c = conjunction(run);
+        while (peek().equals("||")) {
+            pos++;
+            c = conjunction(run && !c) || c;
+        }
+        return c;
+    }
+
+    //-----------------------------------------
+    private boolean conjunction(boolean run) {
+        boolean c = comparison(run);
+        while (peek().equals("&&")) {
+            pos++;
+            c = comparison(run && c) && c;
+        }
+        return c;
+    }
+
+    //-----------------------------------------
+    // A parenthesis holding a comparison, && or || at its top
+    // level groups a condition; any other starts an expression.
+    //
+    private boolean comparison(boolean run) {
+        if (peek().equals("(")) {
+            int depth = 0;
+            for (int i = pos + 1; i < tokens.size(); i++) {
+                String t = tokens.get(i);
+                if (t.equals("("))
+                    depth++;
+                else if (t.equals(")") && depth-- == 0 || t.equals(";"))
+                    break;
+                else if (depth == 0 && (RELATIONS.contains(t)
+                        || t.equals("&&") || t.equals("||"))) {
+                    pos++;
+                    boolean c = condition(run);
+                    expect(")");
+                    return c;
+                }
+            }
+        }
+        int left = expr(run);
+        String rel = peek();
+        if (!RELATIONS.contains(rel))
+            return left != 0;
+        pos++;
+        int right = expr(run);
+        switch (rel) {
+            case "<":
+                return left < right;
+            case "<=":
+                return left <= right;
+            case ">":
+                return left > right;
+            case ">=":
+                return left >= right;
+            case "==":
+                return left == right;
+            default:
+                return left != right;
+        }
+    }
+
+    //-----------------------------------------
+    private int expr(boolean run) {
+        int v = term(run);
+        while (peek().equals("+") || peek().equals("-"))
+            if (next().equals("+"))
+                v += term(run);
+            else
+                v -= term(run);
+        return v;
+    }
+
+    //-----------------------------------------
+    private int term(boolean run) {
+        int v = factor(run);
+        while (peek().equals("*") || peek().equals("/"))
+            if (next().equals("*"))
+                v *= factor(run);
+            else {
+                int d = factor(run);
+                if (run && d == 0)
+                    throw new RuntimeException("Division by zero");
+                v = d == 0 ? 0 : v / d;
+            }
+        return v;
+    }
+
+    //-----------------------------------------
+    private int factor(boolean run) {
+        String t = next();
+        if (t.equals("+"))
+            return factor(run);
+        if (t.equals("-"))
+            return -factor(run);
+        if (t.equals("(")) {
+            int v = expr(run);
+            expect(")");
+            return v;
+        }
+        if (t.isEmpty())
+            throw new RuntimeException("Unexpected end");
+        if (Character.isDigit(t.charAt(0)))
+            return Integer.parseInt(t);
+        Integer v = vars.get(t);
+        return v == null ? 0 : v;
+    }
+}                                          // end of R4DEval
+
+//======================================================
+// Differential tester: compiles generated programs at every
+// optimization level, runs each on the simulator and checks
+// that every level prints what R4DEval, run on the source,
+// prints.  Code size and cycles per level are reported so
+// the corpus doubles as a benchmark.  Programs that
+// disagree are saved as fuzz<seed>.s.
+//
+class R4DFuzz {
+    static final long MAX_STEPS = 10000000L;
+
+    //-----------------------------------------
+    public static boolean run(R4DOptions opts) throws IOException {
+        String[] levels = R4DOptions.LEVELS;
+        long[] size = new long[levels.length];
+        long[] cycles = new long[levels.length];
+        int failures = 0;
+
+        System.out.printf("%-10s", "seed");
+        for (String level : levels)
+            System.out.printf(" %8s %10s", level + " sz", "cycles");
+        System.out.println();
+
+        for (int p = 0; p < opts.fuzz; p++) {
+            long seed = opts.seed + p;
+            String src = new R4DGen(seed).program(opts.fuzzSize);
+            String input = R4DGen.input(seed);
+            String expected = R4DEval.run(src, input);
+            String[] result = new String[levels.length];
+            boolean same = true;
+
+            System.out.printf("%-10d", seed);
+            for (int l = 0; l < levels.length; l++) {
+                R4DOptions o = new R4DOptions();
+                o.parse(new String[]{levels[l]});
+                R4DCode code = new R4DCode();
+                R4DSim sim = null;
+                try {
+                    Compiler.compile(new Scanner(src), code, o);
+                    sim = new R4DSim(code, new Scanner(input));
+                    sim.run(MAX_STEPS);
+                    result[l] = sim.getOutput();
+                    size[l] += sim.getSize();
+                    cycles[l] += sim.getCycles();
+                    System.out.printf(" %8d %10d", sim.getSize(), sim.getCycles());
+
+                    // -jvm: the JVM backend must print the same
+                    if (opts.jvm) {
+                        StringWriter out = new StringWriter();
+                        R4DJvm.run(code, new Scanner(input), out);
+                        if (!out.toString().equals(result[l])) {
+                            result[l] += "  (-jvm: " + out + ")";
+                            same = false;
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    result[l] = (sim == null ? "" : sim.getOutput())
+                            + "<" + e.getMessage() + ">";
+                    System.out.printf(" %8s %10s", "-", "-");
+                }
+                same = same && result[l].equals(expected);
+            }
+            System.out.println(same ? "" : "  MISMATCH");
+
+            if (!same) {
+                failures++;
+                PrintWriter outFile = new PrintWriter("fuzz" + seed + ".s");
+                outFile.print(src);
+                outFile.close();
+                System.out.println("  eval: " + expected);
+                for (int l = 0; l < levels.length; l++)
+                    System.out.println("  " + levels[l] + ": " + result[l]);
+            }
+        }
+
+        System.out.printf("%-10s", "total");
+        for (int l = 0; l < levels.length; l++)
+            System.out.printf(" %8d %10d", size[l], cycles[l]);
+        System.out.println();
+        System.out.println(failures + " of " + opts.fuzz + " programs disagree");
+        return failures == 0;
+    }
+}                                         // end of R4DFuzz
+
+//======================================================
+// Benchmark gate: compiles every .s program in a directory
+// at every optimization level, runs it on the simulator
+// (readint input from <name>.in if present) and measures
+// code size (words), instructions executed and execution
+// time (cycles).  Output must match <name>.out if
+// present.  The results are checked against baseline.txt
+// in the same directory; any metric more than the
+// threshold above its baseline is a regression.
+//
+//   <program> <level> <size> <instructions> <cycles>
+//
+// A generated program of STREAM_LINES lines must also
+// compile with -stream in a separate JVM limited to
+// STREAM_HEAP, so -stream keeps working in fixed memory.
+//
+class R4DBench {
+    static final String BASELINE = "baseline.txt";
+    static final int STREAM_LINES = 400000;
+    static final String STREAM_HEAP = "-Xmx32m";
+
+    //-----------------------------------------
+    public static boolean run(R4DOptions opts) throws IOException {
+        File dir = new File(opts.bench);
+        String[] names = dir.list();
+        if (names == null)
+            throw new IOException("No benchmark directory " + opts.bench);
+        Arrays.sort(names);
+        String[] levels = R4DOptions.LEVELS;
+
+        HashMap<String, long[]> baseline = new HashMap<String, long[]>();
+        File baseFile = new File(dir, BASELINE);
+        if (baseFile.exists()) {
+            Scanner inFile = new Scanner(baseFile);
+            while (inFile.hasNext()) {
+                String key = inFile.next() + " " + inFile.next();
+                baseline.put(key, new long[]{
+                        inFile.nextLong(), inFile.nextLong(), inFile.nextLong()});
+            }
+            inFile.close();
+        }
+
+        ArrayList<String> results = new ArrayList<String>();
+        long[][] totals = new long[levels.length][3];
+        boolean ok = true;
+
+        System.out.println("| Program | Level | Code size | Instructions | Execution time |");
+        System.out.println("|---------|-------|-----------|--------------|----------------|");
+        for (String name : names) {
+            if (!name.endsWith(".s"))
+                continue;
+            String program = name.substring(0, name.length() - 2);
+            File in = new File(dir, program + ".in");
+            File out = new File(dir, program + ".out");
+            String src = new String(Files.readAllBytes(new File(dir, name).toPath()));
+            String expected = out.exists()
+                    ? new String(Files.readAllBytes(out.toPath())) : null;
+
+            for (int l = 0; l < levels.length; l++) {
+                R4DOptions o = new R4DOptions();
+                o.parse(new String[]{levels[l]});
+                R4DCode code = new R4DCode();
+                R4DSim sim;
+                try {
+                    Compiler.compile(new Scanner(src), code, o);
+                    sim = new R4DSim(code,
+                            in.exists() ? new Scanner(in) : null);
+                    sim.run(R4DSim.MAX_STEPS);
+                } catch (RuntimeException e) {
+                    System.out.println("  " + program + " " + levels[l]
+                            + ": " + e.getMessage());
+                    ok = false;
+                    continue;
+                }
+                if (expected != null && !expected.equals(sim.getOutput())) {
+                    System.out.println("  WRONG OUTPUT " + program + " " + levels[l]);
+                    ok = false;
+                }
+
+                long[] m = {sim.getSize(), sim.getInstructions(), sim.getCycles()};
+                String key = program + " " + levels[l];
+                results.add(key + " " + m[0] + " " + m[1] + " " + m[2]);
+                for (int k = 0; k < 3; k++)
+                    totals[l][k] += m[k];
+                System.out.printf("| %s | %s | %d | %d | %d |%n",
+                        program, levels[l], m[0], m[1], m[2]);
+
+                long[] b = baseline.get(key);
+                if (b == null) {
+                    if (!opts.benchUpdate)
+                        System.out.println("  no baseline for " + key);
+                    continue;
+                }
+                for (int k = 0; k < 3; k++)
+                    if (m[k] * 100 > b[k] * (100 + opts.threshold)) {
+                        System.out.printf("  REGRESSION %s %s: %d, baseline %d%n",
+                                key, metric(k), m[k], b[k]);
+                        ok = false;
+                    }
+            }
+        }
+
+        if (!streams()) {
+            System.out.println("  -stream failed with a heap of " + STREAM_HEAP);
+            ok = false;
+        }
+
+        // summary in the form of the README table
+        int last = R4DOptions.FASTEST;
+        System.out.println();
+        System.out.printf("|--------------------| %-15s | %-13s | Optimization %% |%n",
+                levels[0], levels[last]);
+        System.out.println("|--------------------|-----------------|---------------|----------------|");
+        for (int k = 0; k < 3; k++)
+            System.out.printf("| %-19s| %-16d| %-14d| %-15s|%n", metric(k),
+                    totals[0][k], totals[last][k],
+                    String.format("%.2f%%", totals[0][k] == 0 ? 0.0 :
+                            100.0 * (totals[0][k] - totals[last][k]) / totals[0][k]));
+
+        if (opts.benchUpdate) {
+            PrintWriter outFile = new PrintWriter(baseFile);
+            for (String r : results)
+                outFile.println(r);
+            outFile.close();
+            System.out.println("Baseline written to " + baseFile);
+            return true;
+        }
+        System.out.println(ok ? "No regressions" : "Regressions beyond "
+                + opts.threshold + "%");
+        return ok;
+    }
+
+    //-----------------------------------------
+    // Compile a program of STREAM_LINES lines with -stream in
+    // a JVM with a heap of STREAM_HEAP; whether it succeeds.
+    //
+    private static boolean streams() throws IOException {
+        File dir = Files.createTempDirectory("r4d").toFile();
+        File src = new File(dir, "stream.s");
+        PrintWriter outFile = new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(src),
+                        StandardCharsets.US_ASCII)));
+        for (int i = 0; i < STREAM_LINES; i++)     // all distinct
+            if (i % 3 == 0)
+                outFile.println("println(\"s" + i + "\");");
+            else if (i % 3 == 1)
+                outFile.println("x = y + " + (i + 5000) + ";");
+            else
+                outFile.println("v" + i + " = w" + i + " + 1;");
+        outFile.close();
+
+        String java = System.getProperty("java.home") + File.separator
+                + "bin" + File.separator + "java";
+        Process p = new ProcessBuilder(java, STREAM_HEAP, "-cp",
+                System.getProperty("java.class.path"), "Compiler",
+                "-O1", "-stream", "stream")
+                .directory(dir)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        int status;
+        try {
+            status = p.waitFor();
+        } catch (InterruptedException e) {
+            p.destroy();
+            status = -1;
+        }
+        src.delete();
+        new File(dir, "stream.a").delete();
+        dir.delete();
+        return status == 0;
+    }
+
+    //-----------------------------------------
+    private static String metric(int k) {
+        return k == 0 ? "Machine code size" :
+                k == 1 ? "Instructions" : "Execution time";
+    }
+}                                         // end of R4DBench
+
+//======================================================
+// Builds a program from several units.  Each <unit>.s is
+// compiled on its own, in parallel, into the object file
+// <unit>.o, which is the unit's .a text preceded by a key
+// line holding a hash of the source and the options; a unit
+// whose key still matches is not recompiled.  Linking runs
+// the units in command-line order: each halt is dropped,
+// the -Os subroutines after it move behind the final halt,
+// @L and @F labels are renumbered past those of earlier units,
+// equal strings share one dw, and variables, @t temps and
+// @ constants with the same name share a slot.
+//
+class R4DLink {
+    static final String KEY = "; key ";
+
+    //-----------------------------------------
+    public static boolean build(R4DOptions opts) throws IOException {
+        int n = opts.files.size();
+        opts.unit = true;
+        String[] errors = new String[n];
+        ArrayList<Callable<R4DCode>> tasks = new ArrayList<Callable<R4DCode>>();
+        for (int i = 0; i < n; i++) {
+            int u = i;
+            tasks.add(() -> {
+                try {
+                    return object(opts.files.get(u), opts);
+                } catch (IOException | RuntimeException e) {
+                    errors[u] = e.getMessage();
+                    return null;
+                }
+            });
+        }
+
+        ArrayList<R4DCode> objects = new ArrayList<R4DCode>();
+        boolean ok = true;
+        List<Future<R4DCode>> done = ForkJoinPool.commonPool().invokeAll(tasks);
+        for (int i = 0; i < n; i++) {
+            if (errors[i] != null) {
+                System.out.println(errors[i]);
+                ok = false;
+            } else
+                try {
+                    objects.add(done.get(i).get());
+                } catch (InterruptedException | ExecutionException e) {
+                    throw new IOException(e);
+                }
+        }
+        if (!ok)
+            return false;
+
+        String outFileName = (opts.output != null
+                ? opts.output : opts.files.get(0)) + ".a";
+        R4DEmitter outFile = new R4DEmitter(outFileName);
+        link(objects).write(outFile);
+        outFile.close();
+        return true;
+    }
+
+    //-----------------------------------------
+    // The object for unit, compiled unless <unit>.o is current.
+    //
+    private static R4DCode object(String unit, R4DOptions opts)
+            throws IOException {
+        File objFile = new File(unit + ".o");
+        R4DFileEvent read = new R4DFileEvent();
+        read.begin();
+        String src = new String(Files.readAllBytes(new File(unit + ".s").toPath()));
+        read.path = unit + ".s";
+        read.operation = "read";
+        read.commit();
+        String key = R4DCache.key(src, opts);
+
+        if (objFile.exists()) {
+            Scanner inFile = new Scanner(objFile);
+            if (inFile.hasNextLine() && inFile.nextLine().equals(KEY + key)) {
+                R4DCode code = R4DCode.load(inFile);
+                inFile.close();
+                return code;
+            }
+            inFile.close();
+        }
+
+        R4DCode code = new R4DCode();
+        try {
+            Compiler.compile(new Scanner(src), code, opts);
+        } catch (RuntimeException e) {
+            objFile.delete();
+            throw new IOException(unit + ".s: " + e.getMessage());
+        }
+        R4DEmitter outFile = new R4DEmitter(objFile.getPath());
+        outFile.line(KEY + key);
+        code.write(outFile);
+        outFile.close();
+        return code;
+    }
+
+    //-----------------------------------------
+    public static R4DCode link(ArrayList<R4DCode> objects) {
+        R4DCode out = new R4DCode();
+        out.text("!register");
+        out.text("; from Compiler compiler written by Sabhaya Saumil");
+
+        ArrayList<R4DInstr> data = new ArrayList<R4DInstr>();
+        ArrayList<R4DInstr> subs = new ArrayList<R4DInstr>();
+        HashMap<String, String> strings = new HashMap<String, String>();
+        HashMap<String, Boolean> slots = new HashMap<String, Boolean>();
+        int base = 0;                  // first label number of this unit
+        int subBase = 0;               // first subroutine number
+
+        for (R4DCode obj : objects) {
+            HashMap<String, String> rename = new HashMap<String, String>();
+            int labels = 0;
+            int routines = 0;
+            for (int i = 0; i < obj.size(); i++) {
+                R4DInstr r = obj.get(i);
+                String l = r.kind == R4DInstr.LABEL || r.kind == R4DInstr.DW
+                        ? r.label : r.opnd;
+                if (l != null && l.startsWith("@L")) {
+                    int n = Integer.parseInt(l.substring(2));
+                    rename.put(l, "@L" + (base + n));
+                    labels = Math.max(labels, n + 1);
+                } else if (l != null && l.startsWith("@F")) {
+                    int n = Integer.parseInt(l.substring(2));
+                    rename.put(l, "@F" + (subBase + n));
+                    routines = Math.max(routines, n + 1);
+                }
+            }
+            // a string already placed by an earlier unit is reused
+            for (int i = 0; i < obj.size(); i++) {
+                R4DInstr r = obj.get(i);
+                if (r.kind == R4DInstr.DW && r.label.startsWith("@L")) {
+                    String s = strings.get(r.opnd);
+                    if (s != null)
+                        rename.put(r.label, s);
+                    else
+                        strings.put(r.opnd, rename.get(r.label));
+                }
+            }
+
+            boolean halted = false;
+            for (int i = 0; i < obj.size(); i++) {
+                R4DInstr r = obj.get(i);
+                if (i < 2 && r.kind == R4DInstr.TEXT)
+                    continue;                  // unit's own header
+                if (r.kind == R4DInstr.OP && r.op.trim().equals("halt")) {
+                    halted = true;
+                    continue;
+                }
+                R4DInstr c = copy(r);
+                if (c.kind == R4DInstr.LABEL)
+                    c.label = rename.get(c.label);
+                else if (c.kind == R4DInstr.OP && rename.containsKey(c.opnd))
+                    c.opnd = rename.get(c.opnd);
+                else if (c.kind == R4DInstr.DW) {
+                    if (c.label.startsWith("@L"))
+                        c.label = rename.get(c.label);
+                    if (slots.put(c.label, true) == null)
+                        data.add(c);
+                    continue;
+                }
+                if (halted)
+                    subs.add(c);
+                else
+                    out.add(c);
+            }
+            base += labels;
+            subBase += routines;
+        }
+
+        // the last unit's blank line stays in front of halt
+        out.instruction("            halt", null);
+        for (R4DInstr r : subs)
+            out.add(r);
+        for (R4DInstr r : data)
+            out.add(r);
+        return out;
+    }
+
+    //-----------------------------------------
+    private static R4DInstr copy(R4DInstr r) {
+        R4DInstr c = new R4DInstr();
+        c.kind = r.kind;
+        c.label = r.label;
+        c.op = r.op;
+        c.opnd = r.opnd;
+        c.line = r.line;
+        c.column = r.column;
+        return c;
+    }
+}                                          // end of R4DLink
+
+//======================================================
+// Compile results by content.  The key is a SHA-256 hash
+// of the compiler's class files, the options that change
+// the code and the source, so a hit is exactly what a
+// compile would produce.  The most recently used results
+// are kept in memory up to a limit; with a directory they
+// are also kept on disk, least recently used deleted first
+// when the directory grows past its limit.  One cache may
+// be shared by the threads of a long-running embedding.
+//
+class R4DCache {
+    static final long MEMORY = 32L << 20;   // bytes of .a files held
+    static final long DISK = 256L << 20;    // default bytes on disk
+    static final String STATS = "; stats ";
+
+    //-----------------------------------------
+    // A compile result: the bytes of the .a file as the
+    // emitter wrote them, with the instruction and dw counts
+    // of its code.
+    //
+    static class Entry {
+        byte[] bytes;
+        int instructions;
+        int dws;
+
+        //-----------------------------------------
+        // The .a text, in the charset the emitter wrote.
+        //
+        public String text() {
+            return new String(bytes);
+        }
+
+        //-----------------------------------------
+        public R4DCode code() {
+            return R4DCode.load(new Scanner(text()));
+        }
+    }
+
+    private File dir;                   // null for memory only
+    private long memoryLimit;
+    private long diskLimit;
+    private long memoryUsed;
+    private LinkedHashMap<String, Entry> memory =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    int hits;
+    int misses;
+
+    private static String version;      // hash of the class files
+
+    //-----------------------------------------
+    public R4DCache(File dir, long memoryLimit, long diskLimit) {
+        this.dir = dir;
+        this.memoryLimit = memoryLimit;
+        this.diskLimit = diskLimit;
+        if (dir != null)
+            dir.mkdirs();
+    }
+
+    //-----------------------------------------
+    // Whether the .a text alone is the result of a compile
+    // with opts.  Profiles, source maps and tuning read or
+    // write other files, and -stream keeps no text.
+    //
+    public static boolean applies(R4DOptions opts) {
+        return !opts.profileGen && !opts.profileUse && !opts.sourceMap
+                && !opts.autotune && !opts.stream;
+    }
+
+    //-----------------------------------------
+    // The result for src, compiled only on a miss.  A syntax
+    // error throws a RuntimeException and caches nothing.
+    //
+    public Entry compile(String src, R4DOptions opts) throws IOException {
+        String key = key(src, opts);
+        Entry e = get(key);
+        if (e != null)
+            return e;
+        R4DCode code = new R4DCode();
+        Compiler.compile(new Scanner(src), code, opts);
+        if (opts.peval > 0)
+            code = R4DPartialEval.residual(code, opts.peval);
+        e = entry(code);
+        put(key, e);
+        return e;
+    }
+
+    //-----------------------------------------
+    // The entry for key, or null; a disk hit is moved into
+    // memory.
+    //
+    public synchronized Entry get(String key) {
+        Entry e = memory.get(key);
+        if (e == null && dir != null)
+            e = read(new File(dir, key + ".a"));
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        keep(key, e);
+        return e;
+    }
+
+    //-----------------------------------------
+    public synchronized void put(String key, Entry e) throws IOException {
+        keep(key, e);
+        if (dir == null)
+            return;
+
+        // written aside and renamed, so a reader never sees
+        // half an entry
+        File tmp = File.createTempFile(key, ".tmp", dir);
+        FileOutputStream out = new FileOutputStream(tmp);
+        out.write((STATS + e.instructions + " " + e.dws + "\n")
+                .getBytes(StandardCharsets.US_ASCII));
+        out.write(e.bytes);
+        out.close();
+        Files.move(tmp.toPath(), new File(dir, key + ".a").toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        evict();
+    }
+
+    //-----------------------------------------
+    // Entry for compiled code.
+    //
+    public static Entry entry(R4DCode code) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        R4DEmitter out = new R4DEmitter(bytes);
+        code.write(out);
+        out.close();
+        Entry e = new Entry();
+        e.bytes = bytes.toByteArray();
+        e.instructions = code.instructions();
+        for (int i = 0; i < code.size(); i++)
+            if (code.get(i).kind == R4DInstr.DW)
+                e.dws++;
+        return e;
+    }
+
+    //-----------------------------------------
+    // Hash of everything the code depends on, including the
+    // charset the emitter encodes the .a file in.
+    //
+    public static String key(String src, R4DOptions opts) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update((version() + " " + Charset.defaultCharset()
+                    + " O" + opts.optLevel + " size " + opts.optSize
+                    + " map " + opts.sourceMap + " stack " + opts.stackTemps
+                    + " negate " + opts.negate + " peval " + opts.peval
+                    + " unit " + opts.unit + "\n").getBytes("UTF-8"));
+            md.update(src.getBytes("UTF-8"));
+            return hex(md.digest());
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    //-----------------------------------------
+    // Most recently used last; the oldest go when over the
+    // memory limit.
+    //
+    private void keep(String key, Entry e) {
+        if (memory.put(key, e) == null)
+            memoryUsed += e.bytes.length;
+        Iterator<Entry> i = memory.values().iterator();
+        while (memoryUsed > memoryLimit && i.hasNext()) {
+            memoryUsed -= i.next().bytes.length;
+            i.remove();
+        }
+    }
+
+    //-----------------------------------------
+    // The entry stored in file, or null if there is none or
+    // it cannot be read.  A hit marks the file as recently
+    // used.
+    //
+    private static Entry read(File file) {
+        try {
+            byte[] b = Files.readAllBytes(file.toPath());
+            int end = 0;
+            while (b[end] != '\n')
+                end++;
+            String[] stats = new String(b, 0, end, StandardCharsets.US_ASCII)
+                    .substring(STATS.length()).split(" ");
+            Entry e = new Entry();
+            e.instructions = Integer.parseInt(stats[0]);
+            e.dws = Integer.parseInt(stats[1]);
+            e.bytes = Arrays.copyOfRange(b, end + 1, b.length);
+            file.setLastModified(System.currentTimeMillis());
+            return e;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    //-----------------------------------------
+    // Delete the least recently used files until the
+    // directory is within its limit.
+    //
+    private void evict() {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".a"));
+        if (files == null)
+            return;
+        long used = 0;
+        for (File f : files)
+            used += f.length();
+        Arrays.sort(files,
+                (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (int i = 0; used > diskLimit && i < files.length; i++) {
+            used -= files[i].length();
+            files[i].delete();
+        }
+    }
+
+    //-----------------------------------------
+    // Hash of the compiler's own class files: those of this
+    // source, found next to Compiler.class or in its jar.
+    //
+    private static synchronized String version() throws Exception {
+        if (version != null)
+            return version;
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        File where = new File(Compiler.class.getProtectionDomain()
+                .getCodeSource().getLocation().toURI());
+        if (where.isDirectory()) {
+            String[] names = where.list();
+            Arrays.sort(names);
+            for (String name : names)
+                if (ours(name))
+                    md.update(Files.readAllBytes(
+                            new File(where, name).toPath()));
+        } else
+            try (ZipFile jar = new ZipFile(where)) {
+                ArrayList<String> names = new ArrayList<String>();
+                jar.stream().forEach(entry -> names.add(entry.getName()));
+                names.sort(null);
+                for (String name : names)
+                    if (ours(name))
+                        md.update(jar.getInputStream(jar.getEntry(name)).readAllBytes());
+            }
+        version = hex(md.digest());
+        return version;
+    }
+
+    //-----------------------------------------
+    private static boolean ours(String name) {
+        return name.endsWith(".class") && (name.startsWith("R4D")
+                || name.startsWith("Compiler") || name.startsWith("Token"));
+    }
+
+    //-----------------------------------------
+    private static String hex(byte[] digest) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest)
+            sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+}                                         // end of R4DCache
 
 
 class Token {
@@ -0,0 +1,18 @@
+// expression-heavy straight-line code
+a = 12;
+b = 7;
+c = -3;
+d = a * b - c * (a - b) + 4099;
+e = (a + b) * (a - b) / (c - 1) - -d;
+f = - - -a + +b * - -c - (d / 5);
+g = ((a * 2 + b * 3) - (c * 4 + d * 5)) / ((e - f) / 9 + 1);
+h = a - (b - (c - (d - (e - (f - g)))));
+i = 1 + 2 * 3 - 4 / 2 + 5000 * 2;
+println(d);
+println(e);
+println(f);
+println(g);
+println(h);
+println(i);
+x = y = z = a * b * c;
+println(x + y + z);
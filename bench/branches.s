@@ -0,0 +1,28 @@
+// if/else-if chains inside a loop
+i = 12;
+evens = 0;
+odds = 0;
+while (i) {
+    r = i - i / 2 * 2;
+    m = i - i / 3 * 3;
+    s = i - 6;
+    if (r)
+        odds = odds + 1;
+    else
+        evens = evens + 1;
+    if (m)
+        if (r)
+            print("a");
+        else
+            print("b");
+    else if (r)
+        print("c");
+    else if (s)
+        print("d");
+    else
+        print("e");
+    i = i - 1;
+}
+println();
+println(evens);
+println(odds);
@@ -0,0 +1,10 @@
+// a loop whose results are never printed: every store is dead
+a = 0;
+b = 1;
+k = 3;
+while (k) {
+    t = a + b;
+    a = b;
+    b = t;
+    k = k - 1;
+}
@@ -0,0 +1,27 @@
+x = +3 + -2 + 1;
+y = x;
+z = x*(2 + y) + (((4099)));
+println(z + x + -2);
+println(4107);
+println((z - (x - 50)   // comment in middle of statement
+		) / 2 - x);
+println(2075);
+	;                       // null statement 
+    {{;                     // compound statement
+       {
+x = 10;  
+       ;
+y = 20;
+    }};}
+    {}
+print(x);
+println(x);
+println(1010);
+println(y);
+println(20);
+x = 1 + (2 + (3+ 4));
+println(x);
+println(10);
+x = 1 + 2 + 3 + 4 + 5;
+println(x);
+println(15);
\ No newline at end of file
@@ -0,0 +1,41 @@
+// counting loops, nested, with accumulators
+sum = 0;
+i = 20;
+while (i) {
+    sum = sum + i * i;
+    i = i - 1;
+}
+println(sum);
+
+total = 0;
+outer = 6;
+while (outer) {
+    inner = 5;
+    do {
+        total = total + outer * inner - 1;
+        inner = inner - 1;
+    } while (inner);
+    outer = outer - 1;
+}
+println(total);
+
+fact = 1;
+n = 7;
+do {
+    fact = fact * n;
+    n = n - 1;
+} while (n);
+println(fact);
+
+a = 0;
+b = 1;
+k = 15;
+while (k) {
+    t = a + b;
+    a = b;
+    b = t;
+    print(a);
+    print(" ");
+    k = k - 1;
+}
+println();
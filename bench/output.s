@@ -0,0 +1,21 @@
+// output-heavy program: constants, strings and variables
+println("Table of squares");
+n = 10;
+i = 1;
+while (n) {
+    print("  ");
+    print(i);
+    print(" squared is ");
+    println(i * i);
+    i = i + 1;
+    n = n - 1;
+}
+println(4107);
+println(2075);
+print(1);
+print(2);
+print(3);
+println();
+x = 42;
+println(x);
+println("done");
@@ -0,0 +1,14 @@
+// reads its input; see readint.in
+readint(n);
+sum = 0;
+max = 0;
+while (n) {
+    readint(v);
+    sum = sum + v;
+    d = v - max;
+    if (d)
+        max = max + d / 2;
+    n = n - 1;
+}
+println(sum);
+println(max);
@@ -0,0 +1,26 @@
+// comparisons, grouped and with operands far apart; see relations.in
+readint(n);
+below = 0;
+above = 0;
+same = 0;
+while (n > 0) {
+    readint(a);
+    readint(b);
+    if (a < b)
+        below = below + 1;
+    else if (a > b)
+        above = above + 1;
+    if ((a <= b && b <= a))
+        same = same + 1;
+    if ((a < 0 || b < 0) && a >= -1000)
+        print("n");
+    else if (a != b && (b > 1000 || a == 0))
+        print("p");
+    else
+        print("z");
+    n = n - 1;
+}
+println();
+println(below);
+println(above);
+println(same);